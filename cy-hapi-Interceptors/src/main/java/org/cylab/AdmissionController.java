@@ -0,0 +1,275 @@
+package org.cylab;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many validator calls run at once, adapting the limit to the validator's latency.
+ * <p>
+ * The limit follows a TCP Vegas style rule: the ratio between the lowest observed latency and the latest one
+ * estimates how many calls are queueing inside the validator. The limit grows by one while that queue is short
+ * and shrinks by one when it gets long; failed calls (timeouts, connection errors, 5xx) cut it by 10%.
+ * <p>
+ * Calls over the limit wait in a bounded FIFO queue until a slot frees up or their deadline passes.
+ * A call that finds the queue full or times out in the queue is rejected, which callers turn into
+ * {@code 429 Too Many Requests}.
+ * <p>
+ * The per-client quota is counted per request with {@link #acquireClient}, separately from the validator calls:
+ * requests sharing one validator call each take a slot of their own client's quota.
+ */
+public class AdmissionController {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+    private static final int ALPHA = 3;
+    private static final int BETA = 6;
+    private static final int MIN_RTT_RESET_SAMPLES = 500;
+    private static final double DROP_FACTOR = 0.9;
+    private static final double RTT_SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final Duration queueTimeout;
+    private final int clientMaxInFlight;
+    private final ScheduledExecutorService timer;
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Integer> clientCounts = new HashMap<>();
+    private double limit;
+    private int inFlight;
+    private long minRttNanos = Long.MAX_VALUE;
+    private double smoothedRttNanos;
+    private int samplesSinceReset;
+
+    /**
+     * @param clientMaxInFlight requests a single client may have waiting for validation at once, {@code 0} for no quota
+     */
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, int maxQueue, Duration queueTimeout, int clientMaxInFlight) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeout = queueTimeout;
+        this.clientMaxInFlight = Math.max(0, clientMaxInFlight);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("admission-timer-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Creates the controller from {@code ADMISSION_*} settings, or returns {@code null} if admission control is off.
+     */
+    static AdmissionController fromEnvironment() {
+        if (!EnvironmentSettings.getBoolean("ADMISSION_CONTROL", false)) {
+            return null;
+        }
+        return new AdmissionController(
+                EnvironmentSettings.getInt("ADMISSION_INITIAL_LIMIT", 20),
+                EnvironmentSettings.getInt("ADMISSION_MIN_LIMIT", 4),
+                EnvironmentSettings.getInt("ADMISSION_MAX_LIMIT", 256),
+                EnvironmentSettings.getInt("ADMISSION_MAX_QUEUE", 100),
+                Duration.ofMillis(EnvironmentSettings.getLong("ADMISSION_QUEUE_TIMEOUT_MS", 2_000)),
+                EnvironmentSettings.getInt("ADMISSION_CLIENT_MAX_IN_FLIGHT", 0)
+        );
+    }
+
+    /**
+     * Takes a slot of the client's quota for one request, whether the request starts a validator call or shares one
+     * already running. Returns {@code null} if the client is over its quota.
+     */
+    public ClientPermit acquireClient(String clientId) {
+        if (clientMaxInFlight == 0) {
+            return ClientPermit.UNLIMITED;
+        }
+        String client = clientId != null ? clientId : "";
+        synchronized (this) {
+            int clientCount = clientCounts.getOrDefault(client, 0);
+            if (clientCount >= clientMaxInFlight) {
+                logger.info("Client {} is over its quota of {} validations", client, clientMaxInFlight);
+                return null;
+            }
+            clientCounts.put(client, clientCount + 1);
+        }
+        return new ClientPermit(this, client);
+    }
+
+    /**
+     * Asks for a slot. The future completes with a permit once the call may run, or with {@code null} if it is rejected.
+     * The future may be completed on the thread releasing another permit, so callers should not block in its callbacks.
+     */
+    public CompletableFuture<Permit> acquire() {
+        Waiter waiter;
+        synchronized (this) {
+            if (inFlight < (int) limit && queue.isEmpty()) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (queue.size() >= maxQueue) {
+                return CompletableFuture.completedFuture(null);
+            }
+            waiter = new Waiter(new CompletableFuture<>());
+            queue.add(waiter);
+        }
+        timer.schedule(() -> expire(waiter), queueTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        return waiter.future;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Suggested {@code Retry-After} in seconds, based on the recent validator latency.
+     */
+    public synchronized long getRetryAfterSeconds() {
+        return Math.max(1, (long) Math.ceil(smoothedRttNanos / 1_000_000_000.0));
+    }
+
+    private void expire(Waiter waiter) {
+        synchronized (this) {
+            if (!queue.remove(waiter)) {
+                return;
+            }
+        }
+        waiter.future.complete(null);
+    }
+
+    private void release(Permit permit, ValidationResponseResult result) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            inFlight--;
+            updateLimit(System.nanoTime() - permit.startNanos, result);
+            admitted = admitWaiters();
+        }
+        handOver(admitted);
+    }
+
+    /**
+     * Gives back a slot that was handed to a waiter whose future had already completed. No call ran in it,
+     * so the limit is left as is.
+     */
+    private void returnSlot() {
+        List<Waiter> admitted;
+        synchronized (this) {
+            inFlight--;
+            admitted = admitWaiters();
+        }
+        handOver(admitted);
+    }
+
+    private List<Waiter> admitWaiters() {
+        List<Waiter> admitted = new ArrayList<>();
+        Iterator<Waiter> iterator = queue.iterator();
+        while (inFlight < (int) limit && iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            iterator.remove();
+            inFlight++;
+            admitted.add(waiter);
+        }
+        return admitted;
+    }
+
+    private void handOver(List<Waiter> admitted) {
+        // 在鎖外完成 future, 避免後續處理在持有鎖時執行
+        for (Waiter waiter : admitted) {
+            if (!waiter.future.complete(new Permit())) {
+                // 等待者已取消, 把位子交給下一個等待者
+                returnSlot();
+            }
+        }
+    }
+
+    private void updateLimit(long rttNanos, ValidationResponseResult result) {
+        int status = result != null ? result.getStatus() : ValidationResponseResult.STATUS_FAILED;
+        if (status == ValidationResponseResult.STATUS_REJECTED) {
+            // 本地拒絕的呼叫沒有實際延遲可參考
+            return;
+        }
+        if (status == ValidationResponseResult.STATUS_FAILED || status >= 500) {
+            limit = Math.max(minLimit, limit * DROP_FACTOR);
+            return;
+        }
+
+        smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos + RTT_SMOOTHING * (rttNanos - smoothedRttNanos);
+        if (++samplesSinceReset >= MIN_RTT_RESET_SAMPLES) {
+            // 定期重設最低延遲, 讓 validator 本身變慢時基準也能跟著調整
+            minRttNanos = rttNanos;
+            samplesSinceReset = 0;
+        } else {
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+        }
+
+        double queued = limit * (1 - (double) minRttNanos / Math.max(1, rttNanos));
+        if (queued < ALPHA && inFlight + 1 >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1);
+        } else if (queued > BETA) {
+            limit = Math.max(minLimit, limit - 1);
+        }
+    }
+
+    private synchronized void releaseClient(String client) {
+        clientCounts.computeIfPresent(client, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * A granted slot; must be released exactly once with the result of the call.
+     */
+    public final class Permit {
+        private final long startNanos = System.nanoTime();
+
+        private Permit() {
+        }
+
+        /**
+         * @param result the validator result, or {@code null} if the call threw
+         */
+        public void release(ValidationResponseResult result) {
+            AdmissionController.this.release(this, result);
+        }
+    }
+
+    /**
+     * A slot of a client's quota; must be released exactly once when the request is answered.
+     */
+    public static final class ClientPermit {
+        static final ClientPermit UNLIMITED = new ClientPermit(null, null);
+
+        private final AdmissionController controller;
+        private final String client;
+
+        private ClientPermit(AdmissionController controller, String client) {
+            this.controller = controller;
+            this.client = client;
+        }
+
+        public void release() {
+            if (controller != null) {
+                controller.releaseClient(client);
+            }
+        }
+    }
+
+    private record Waiter(CompletableFuture<Permit> future) {
+    }
+}
@@ -0,0 +1,317 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Validates many codings sent in one {@code $validate-code} request.
+ * <p>
+ * A request is a batch when its {@code Parameters} holds more than one {@code coding} or {@code codeableConcept}
+ * parameter; the other parameters ({@code url}, {@code valueSet}, {@code valueSetVersion}) apply to every entry.
+ * Identical codings are validated once, on a shared pool whose size bounds how many codings are validated at once
+ * across all requests. Each coding goes through the same steps as a single request: the result cache, the common
+ * code systems, the inline ValueSet index and finally the server's terminology service, the one found by
+ * {@link ServerTerminology}. Batch results are cached apart from single responses.
+ * <p>
+ * The response holds one {@code validation} parameter per input entry, in input order, whose resource is the
+ * {@code Parameters} a single {@code $validate-code} would have returned for it. A {@code codeableConcept} is valid
+ * if any of its codings is.
+ */
+public class BatchCodeValidator {
+    private static final Logger logger = LoggerFactory.getLogger(BatchCodeValidator.class);
+
+    private final CommonCodeValidator commonCodeValidator;
+    private final TerminologyResultCache terminologyResultCache;
+    private final InlineValueSetIndex inlineValueSetIndex;
+    private final Executor executor;
+    private final int maximumCodings;
+
+    /**
+     * @param maximumCodings largest number of codings accepted in one request
+     */
+    public BatchCodeValidator(CommonCodeValidator commonCodeValidator,
+                              TerminologyResultCache terminologyResultCache,
+                              InlineValueSetIndex inlineValueSetIndex,
+                              Executor executor,
+                              int maximumCodings) {
+        this.commonCodeValidator = commonCodeValidator;
+        this.terminologyResultCache = terminologyResultCache;
+        this.inlineValueSetIndex = inlineValueSetIndex;
+        this.executor = executor;
+        this.maximumCodings = maximumCodings;
+    }
+
+    /**
+     * Creates the validator from {@code VALIDATE_CODE_BATCH*} settings, or returns {@code null} if batches are off.
+     */
+    static BatchCodeValidator fromEnvironment(CommonCodeValidator commonCodeValidator,
+                                              TerminologyResultCache terminologyResultCache,
+                                              InlineValueSetIndex inlineValueSetIndex) {
+        if (!EnvironmentSettings.getBoolean("VALIDATE_CODE_BATCH", false)) {
+            return null;
+        }
+        int parallelism = Math.max(1, EnvironmentSettings.getInt("VALIDATE_CODE_BATCH_PARALLELISM", Runtime.getRuntime().availableProcessors()));
+        Executor executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("validate-code-batch-%d")
+                .setDaemon(true)
+                .build());
+        return new BatchCodeValidator(commonCodeValidator, terminologyResultCache, inlineValueSetIndex, executor,
+                EnvironmentSettings.getInt("VALIDATE_CODE_BATCH_MAX_CODINGS", 10_000));
+    }
+
+    /**
+     * Returns {@code true} if the request carries more than one {@code coding} or {@code codeableConcept}.
+     */
+    static boolean isBatch(ParametersScan theParameters) {
+        int entries = 0;
+        for (ParametersScan.Parameter parameter : theParameters.getParameters()) {
+            if (isEntry(parameter) && ++entries > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Validates every entry of a batch request.
+     *
+     * @param theTerminologySupport the server's terminology service, answering codes the interceptor cannot decide
+     * @param theResourceName       {@code ValueSet} or {@code CodeSystem}
+     * @throws InvalidRequestException if the request holds more than the allowed number of codings
+     */
+    Parameters validate(FhirContext theFhirContext, IValidationSupport theTerminologySupport, String theResourceName, ParametersScan theParameters) {
+        Context context = new Context(theFhirContext, theTerminologySupport, theResourceName, theParameters);
+
+        List<ParametersScan.Parameter> entries = new ArrayList<>();
+        Map<ParametersScan.Coding, CompletableFuture<Parameters>> results = new LinkedHashMap<>();
+        int codings = 0;
+        for (ParametersScan.Parameter parameter : theParameters.getParameters()) {
+            if (!isEntry(parameter)) {
+                continue;
+            }
+            entries.add(parameter);
+            for (ParametersScan.Coding coding : getCodings(parameter)) {
+                if (++codings > maximumCodings) {
+                    throw new InvalidRequestException("A $validate-code batch may hold at most " + maximumCodings + " codings");
+                }
+                // 相同的 coding 只驗證一次
+                results.computeIfAbsent(coding, key -> CompletableFuture.supplyAsync(() -> validateCoding(context, key), executor));
+            }
+        }
+        logger.info("Validating {} codings ({} distinct) of a {} $validate-code batch", codings, results.size(), theResourceName);
+        CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).join();
+
+        Parameters response = new Parameters();
+        for (ParametersScan.Parameter entry : entries) {
+            Parameters result;
+            if ("codeableConcept".equals(entry.getName())) {
+                result = combine(entry.getCodings(), results);
+            } else {
+                result = results.get(getCodings(entry).get(0)).join().copy();
+            }
+            response.addParameter().setName("validation").setResource(result);
+        }
+        return response;
+    }
+
+    private static boolean isEntry(ParametersScan.Parameter theParameter) {
+        return ("coding".equals(theParameter.getName()) && "valueCoding".equals(theParameter.getValueField())) ||
+                ("codeableConcept".equals(theParameter.getName()) && "valueCodeableConcept".equals(theParameter.getValueField()));
+    }
+
+    private static List<ParametersScan.Coding> getCodings(ParametersScan.Parameter theEntry) {
+        if ("codeableConcept".equals(theEntry.getName())) {
+            return theEntry.getCodings();
+        }
+        return List.of(new ParametersScan.Coding(theEntry.getSystem(), theEntry.getCode(), theEntry.getVersion(), theEntry.getDisplay()));
+    }
+
+    /**
+     * A CodeableConcept is valid if any of its codings is; the result reports the first valid coding, or the
+     * messages of all codings if none is valid.
+     */
+    private static Parameters combine(List<ParametersScan.Coding> theCodings, Map<ParametersScan.Coding, CompletableFuture<Parameters>> results) {
+        List<String> messages = new ArrayList<>();
+        for (ParametersScan.Coding coding : theCodings) {
+            Parameters result = results.get(coding).join();
+            if (isValid(result)) {
+                return result.copy();
+            }
+            result.getParameter().stream()
+                    .filter(p -> "message".equals(p.getName()) && p.getValue() != null)
+                    .forEach(p -> messages.add(p.getValue().primitiveValue()));
+        }
+
+        Parameters result = new Parameters();
+        result.addParameter().setName("result").setValue(new BooleanType(false));
+        String message = theCodings.isEmpty() ? "No coding provided in CodeableConcept" : String.join("; ", messages);
+        if (!message.isEmpty()) {
+            result.addParameter().setName("message").setValue(new StringType(message));
+        }
+        CodeableConcept concept = new CodeableConcept();
+        theCodings.forEach(coding -> concept.addCoding()
+                .setSystem(coding.system())
+                .setVersion(coding.version())
+                .setCode(coding.code())
+                .setDisplay(coding.display()));
+        result.addParameter().setName("codeableConcept").setValue(concept);
+        return result;
+    }
+
+    private static boolean isValid(Parameters theResult) {
+        return theResult.getParameter().stream()
+                .anyMatch(p -> "result".equals(p.getName()) && p.getValue() instanceof BooleanType b && b.booleanValue());
+    }
+
+    private Parameters validateCoding(Context context, ParametersScan.Coding coding) {
+        boolean valueSet = context.valueSet;
+        String system = valueSet || context.url == null ? coding.system() : context.url;
+        String code = coding.code();
+        // 與單筆請求的 key 相同, 但放在 batch 專用的命名空間: 兩者回應的 Parameters 內容不同
+        String keySystem = valueSet || context.parameterUrl == null ? coding.system() : context.parameterUrl;
+        if (code == null) {
+            return ValidateCodeOpCustomizer.createValidateCodeResult(false, system, null, null, "No code provided");
+        }
+
+        TerminologyResultCache.Key key = new TerminologyResultCache.Key(
+                context.resourceName, keySystem, code, coding.version(), coding.display(),
+                valueSet ? context.parameterUrl : null, context.valueSetVersion, context.inlineHash, true);
+        long generation = terminologyResultCache.getGeneration();
+        Parameters cached = terminologyResultCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        Parameters result;
+        try {
+            result = resolve(context, system, coding.version(), code, coding.display());
+        } catch (RuntimeException e) {
+            // 單一 coding 的錯誤只反映在該筆結果, 不快取
+            logger.warn("Failed to validate {}|{} in a $validate-code batch", system, code, e);
+            return ValidateCodeOpCustomizer.createValidateCodeResult(false, system, code, null,
+                    String.format("Unable to validate code '%s#%s': %s", system, code, e.getMessage()));
+        }
+        terminologyResultCache.put(key, result, generation);
+        return result;
+    }
+
+    private Parameters resolve(Context context, String system, String version, String code, String display) {
+        // 常見 code system 的 code 直接驗證
+        String commonSystem = context.valueSet ? getCommonValueSetSystem(context, system) : system;
+        if (commonSystem != null && (system == null || system.equals(commonSystem))) {
+            IValidationSupport.CodeValidationResult result = commonCodeValidator.validateCode(commonSystem, code);
+            if (result != null && result.isOk()) {
+                return ValidateCodeOpCustomizer.createValidateCodeResult(true, commonSystem, code, result.getDisplay(), null);
+            }
+        }
+
+        // inline ValueSet 以編譯後的 compose 索引判斷
+        IValidationSupport support = context.terminologySupport;
+        if (context.valueSet && context.inlineValueSet != null && context.url == null) {
+            InlineValueSetIndex.Membership membership = inlineValueSetIndex.lookup(context.inlineValueSet, system, version, code, display, support);
+            if (membership != null && (membership.member() || !ValidateCodeOpCustomizer.isCommonCodeSystemInCompose(context.inlineValueSet))) {
+                String message = membership.member() ? null :
+                        String.format("The provided code '%s#%s' was not found in the value set", membership.system(), code);
+                return ValidateCodeOpCustomizer.createValidateCodeResult(membership.member(), membership.system(), code, membership.display(), message);
+            }
+        }
+
+        // 其餘交給伺服器的 terminology
+        ValidationSupportContext supportContext = new ValidationSupportContext(support);
+        ConceptValidationOptions options = new ConceptValidationOptions().setInferSystem(system == null);
+        IValidationSupport.CodeValidationResult result;
+        if (!context.valueSet) {
+            result = support.validateCode(supportContext, options, system, code, display, null);
+        } else if (context.url != null) {
+            result = support.validateCode(supportContext, options, system, code, display, context.url);
+        } else if (context.inlineValueSet != null) {
+            result = support.validateCodeInValueSet(supportContext, options, system, code, display, context.getParsedValueSet());
+        } else {
+            return ValidateCodeOpCustomizer.createValidateCodeResult(false, system, code, null, "No value set provided");
+        }
+
+        if (result == null) {
+            return ValidateCodeOpCustomizer.createValidateCodeResult(false, system, code, null,
+                    String.format("Unable to validate code '%s#%s'", system, code));
+        }
+        return ValidateCodeOpCustomizer.createValidateCodeResult(result.isOk(), system, code, result.getDisplay(),
+                result.isOk() ? null : result.getMessage());
+    }
+
+    private String getCommonValueSetSystem(Context context, String system) {
+        if (context.url != null) {
+            return commonCodeValidator.getCodeSystemForValueSet(context.url);
+        }
+        if (context.inlineValueSet != null && !context.inlineValueSet.hasComposeExclude()) {
+            return context.inlineValueSet.getUnrestrictedComposeSystems().stream()
+                    .filter(s -> system == null ? commonCodeValidator.isSupportedCodeSystem(s) : s.equals(system))
+                    .findFirst()
+                    .orElse(null);
+        }
+        return null;
+    }
+
+    /**
+     * The parameters shared by every entry of a batch.
+     */
+    private static final class Context {
+        private final FhirContext fhirContext;
+        private final IValidationSupport terminologySupport;
+        private final String resourceName;
+        private final boolean valueSet;
+        private final String parameterUrl;
+        private final String url;
+        private final String valueSetVersion;
+        private final ParametersScan.Parameter inlineValueSet;
+        private final String inlineHash;
+        private final Supplier<ValueSet> parsedValueSet;
+
+        private Context(FhirContext theFhirContext, IValidationSupport theTerminologySupport, String theResourceName, ParametersScan theParameters) {
+            this.fhirContext = theFhirContext;
+            this.terminologySupport = theTerminologySupport;
+            this.resourceName = theResourceName;
+            this.valueSet = "ValueSet".equals(theResourceName);
+            ParametersScan.Parameter urlParameter = theParameters.getFirst("url");
+            this.parameterUrl = urlParameter != null ? urlParameter.getValue() : null;
+            this.url = ValidateCodeOpCustomizer.stripVersion(parameterUrl);
+            ParametersScan.Parameter version = theParameters.getFirst("valueSetVersion");
+            this.valueSetVersion = version != null ? version.getValue() : null;
+            ParametersScan.Parameter inline = theParameters.getFirst("valueSet");
+            this.inlineValueSet = valueSet && inline != null && inline.isResource() && "ValueSet".equals(inline.getResourceType()) ? inline : null;
+            this.inlineHash = inlineValueSet != null ? inlineValueSet.digestRawValue() : null;
+            // inline ValueSet 只在需要交給 terminology 時解析一次, 由所有 coding 共用
+            this.parsedValueSet = Suppliers.memoize(() -> {
+                ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                inlineValueSet.writeRawValue(raw);
+                return fhirContext.newJsonParser().parseResource(ValueSet.class, raw.toString(StandardCharsets.UTF_8));
+            });
+        }
+
+        private ValueSet getParsedValueSet() {
+            return parsedValueSet.get();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Validates the entries of a JSON Bundle concurrently and merges the results into one OperationOutcome.
+ * <p>
+ * Each {@code Bundle.entry.resource} is sent to the validator on its own, on a shared pool whose size bounds how many
+ * entry validations run at once across all requests. Every entry is a validator call of its own, so callers that
+ * limit validator calls wrap each entry call rather than the Bundle as a whole. Issue {@code expression} and {@code location} paths are
+ * re-prefixed with {@code Bundle.entry[n].resource} so they point into the submitted Bundle.
+ * <p>
+ * Entries are validated without the rest of the Bundle, so references between entries cannot be resolved and
+ * Bundle-level invariants are not checked; the mode is therefore opt-in and only used for Bundles with at least
+ * {@code minimumEntries} entries.
+ */
+public class BundleFanOutValidator {
+    private static final Logger logger = LoggerFactory.getLogger(BundleFanOutValidator.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final FhirContext fhirContext;
+    private final ValidationBackend validationBackend;
+    private final Executor executor;
+    private final int minimumEntries;
+
+    public BundleFanOutValidator(FhirContext fhirContext, ValidationBackend validationBackend, Executor executor, int minimumEntries) {
+        this.fhirContext = fhirContext;
+        this.validationBackend = validationBackend;
+        this.executor = executor;
+        this.minimumEntries = Math.max(1, minimumEntries);
+    }
+
+    /**
+     * Creates the validator from {@code VALIDATE_BUNDLE_FANOUT*} settings, or returns {@code null} if the mode is off.
+     */
+    static BundleFanOutValidator fromEnvironment(ValidationBackend validationBackend) {
+        if (!EnvironmentSettings.getBoolean("VALIDATE_BUNDLE_FANOUT", false)) {
+            return null;
+        }
+        int parallelism = Math.max(1, EnvironmentSettings.getInt("VALIDATE_BUNDLE_FANOUT_PARALLELISM", Runtime.getRuntime().availableProcessors()));
+        Executor executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("validate-bundle-%d")
+                .setDaemon(true)
+                .build());
+        return new BundleFanOutValidator(
+                FhirContext.forR4Cached(),
+                validationBackend,
+                executor,
+                EnvironmentSettings.getInt("VALIDATE_BUNDLE_FANOUT_MIN_ENTRIES", 10)
+        );
+    }
+
+    /**
+     * Splits the body into entry resources and validates them concurrently.
+     *
+     * @return the merged result, or {@code null} if the body is not a JSON Bundle with enough entries
+     */
+    CompletableFuture<ValidationResponseResult> validate(byte[] requestBody) {
+        return validate(requestBody, validationBackend::validate);
+    }
+
+    /**
+     * Like {@link #validate(byte[])}, validating each entry resource with {@code entryValidation}, e.g. the backend
+     * call wrapped in admission control.
+     */
+    CompletableFuture<ValidationResponseResult> validate(byte[] requestBody, Function<byte[], ValidationResponseResult> entryValidation) {
+        List<Entry> entries = split(requestBody);
+        if (entries == null || entries.size() < minimumEntries) {
+            return null;
+        }
+        logger.info("Validating {} Bundle entries concurrently", entries.size());
+
+        List<CompletableFuture<ValidationResponseResult>> calls = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            byte[] entryJson = Arrays.copyOfRange(requestBody, entry.start(), entry.end());
+            calls.add(CompletableFuture.supplyAsync(() -> entryValidation.apply(entryJson), executor));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> merge(entries, calls));
+    }
+
+    private ValidationResponseResult merge(List<Entry> entries, List<CompletableFuture<ValidationResponseResult>> calls) {
+        IParser parser = fhirContext.newJsonParser();
+        OperationOutcome merged = new OperationOutcome();
+        for (int i = 0; i < entries.size(); i++) {
+            ValidationResponseResult result = calls.get(i).join();
+            Entry entry = entries.get(i);
+            if (result.getStatus() != 200) {
+                // 任一 entry 失敗時整體視為驗證失敗, 避免不完整的結果被快取
+                return new ValidationResponseResult("Bundle.entry[" + entry.index() + "]: " + result.getBody(), result.getStatus());
+            }
+            OperationOutcome outcome;
+            try {
+                outcome = parser.parseResource(OperationOutcome.class, result.getBodyStream());
+            } catch (DataFormatException e) {
+                // validator 回應的不是 OperationOutcome 時, 與失敗的 entry 相同處理
+                return new ValidationResponseResult("Bundle.entry[" + entry.index() + "]: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED);
+            }
+            for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+                for (StringType expression : issue.getExpression()) {
+                    expression.setValue(rebase(expression.getValue(), entry));
+                }
+                for (StringType location : issue.getLocation()) {
+                    location.setValue(rebase(location.getValue(), entry));
+                }
+                merged.addIssue(issue);
+            }
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(encoded, StandardCharsets.UTF_8)) {
+            parser.encodeResourceToWriter(merged, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ValidationResponseResult(encoded.toByteArray(), 200);
+    }
+
+    /**
+     * Rewrites a path relative to the entry resource, e.g. {@code Patient.name[0]}, into
+     * {@code Bundle.entry[n].resource.name[0]}.
+     */
+    private static String rebase(String path, Entry entry) {
+        if (path == null) {
+            return null;
+        }
+        String prefix = "Bundle.entry[" + entry.index() + "].resource";
+        String resourceType = entry.resourceType();
+        if (resourceType != null && path.startsWith(resourceType) &&
+                (path.length() == resourceType.length() || path.charAt(resourceType.length()) == '.' || path.charAt(resourceType.length()) == '[')) {
+            return prefix + path.substring(resourceType.length());
+        }
+        return prefix + "." + path;
+    }
+
+    /**
+     * Returns the byte ranges of the entry resources, or {@code null} if the body is not a JSON Bundle.
+     */
+    static List<Entry> split(byte[] requestBody) {
+        List<Entry> entries = new ArrayList<>();
+        String resourceType = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(requestBody)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("resourceType".equals(field) && token.isScalarValue()) {
+                    resourceType = parser.getText();
+                } else if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                    int index = 0;
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        Entry entry = scanEntry(parser, index++);
+                        if (entry != null) {
+                            entries.add(entry);
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return "Bundle".equals(resourceType) ? entries : null;
+    }
+
+    private static Entry scanEntry(JsonParser parser, int index) throws IOException {
+        Entry entry = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("resource".equals(field) && token == JsonToken.START_OBJECT) {
+                int start = (int) parser.currentTokenLocation().getByteOffset();
+                String resourceType = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String resourceField = parser.currentName();
+                    JsonToken resourceToken = parser.nextToken();
+                    if ("resourceType".equals(resourceField) && resourceToken.isScalarValue()) {
+                        resourceType = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                int end = (int) parser.currentLocation().getByteOffset();
+                entry = new Entry(index, resourceType, start, end);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return entry;
+    }
+
+    record Entry(int index, String resourceType, int start, int end) {
+    }
+}
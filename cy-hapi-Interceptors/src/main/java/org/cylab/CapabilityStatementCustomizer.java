@@ -3,18 +3,99 @@ package org.cylab;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.hl7.fhir.instance.model.api.IBaseConformance;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.TerminologyCapabilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+
+/**
+ * Customizes the server's CapabilityStatement and answers {@code metadata?mode=terminology} with a TerminologyCapabilities.
+ * <p>
+ * Both documents are encoded once, in JSON and XML, and then served straight from memory with an {@code ETag} and
+ * {@code Last-Modified}, answering conditional requests with {@code 304 Not Modified}. Registering the interceptor
+ * drops any cached documents and arms a build of all of them; since the server can only produce its
+ * CapabilityStatement once it is initialized, the build runs on the first request of any kind (typically the
+ * readiness probe) instead of the first {@code metadata} request.
+ * <p>
+ * The documents are kept until the configuration changes: the interceptor is registered again, a SearchParameter is
+ * created, updated or deleted, or {@link #invalidate()} is called. {@code CAPABILITY_CACHE_TTL_SECONDS} additionally
+ * lets the server rebuild them periodically; if nothing changed the ETag and Last-Modified stay the same.
+ */
 @Interceptor
 public class CapabilityStatementCustomizer {
+    private static final Logger logger = LoggerFactory.getLogger(CapabilityStatementCustomizer.class);
+    private static final String TERMINOLOGY_MODE = "terminology";
+    private static final String FULL_MODE = "full";
+    private static final String PRETTY_SUFFIX = ":pretty";
+
+    private final Map<String, CachedDocument> documents = new ConcurrentHashMap<>();
+    private final AtomicBoolean buildPending = new AtomicBoolean();
+    private final boolean enabled;
+    private final Duration timeToLive;
+
+    public CapabilityStatementCustomizer() {
+        this(
+                EnvironmentSettings.getBoolean("CAPABILITY_CACHE_ENABLED", true),
+                Duration.ofSeconds(EnvironmentSettings.getLong("CAPABILITY_CACHE_TTL_SECONDS", 0))
+        );
+    }
+
+    /**
+     * @param enabled    whether the encoded documents are cached at all
+     * @param timeToLive how long an encoded document is served before the server builds it again;
+     *                   zero or negative keeps it until the configuration changes
+     */
+    public CapabilityStatementCustomizer(boolean enabled, Duration timeToLive) {
+        this.enabled = enabled;
+        this.timeToLive = timeToLive;
+    }
+
+    @Hook(Pointcut.INTERCEPTOR_REGISTERED)
+    public void onRegistered() {
+        invalidate();
+        buildPending.set(enabled);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void onResourceCreated(IBaseResource theResource) {
+        invalidateIfSearchParameter(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void onResourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidateIfSearchParameter(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void onResourceDeleted(IBaseResource theResource) {
+        invalidateIfSearchParameter(theResource);
+    }
 
     @Hook(Pointcut.SERVER_CAPABILITY_STATEMENT_GENERATED)
     public void customizeCapabilityStatement(IBaseConformance theCapabilityStatement, RequestDetails theRequestDetails) {
@@ -24,6 +105,43 @@ public class CapabilityStatementCustomizer {
         capabilityStatement.getSoftware().setName("CyLab FHIR Server");
     }
 
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean onIncomingRequest(RequestDetails theRequestDetails,
+                                     HttpServletRequest theServletRequest,
+                                     HttpServletResponse theServletResponse) throws IOException {
+        if (buildPending.compareAndSet(true, false)) {
+            buildDocuments(theRequestDetails);
+        }
+        if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.METADATA) {
+            return true;
+        }
+        String slot = getCacheSlot(theRequestDetails);
+        CachedDocument document = slot != null ? documents.get(slot) : null;
+        if (document == null || isExpired(document)) {
+            return true;
+        }
+        EncodingEnum encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getEncoding();
+        if (encoding != EncodingEnum.JSON && encoding != EncodingEnum.XML) {
+            return true;
+        }
+
+        byte[] body = encoding == EncodingEnum.JSON ? document.json : document.xml;
+        String etag = encoding == EncodingEnum.JSON ? document.jsonEtag : document.xmlEtag;
+        writeValidators(theServletResponse, etag, document.lastModified);
+        if (isNotModified(theServletRequest, etag, document.lastModified)) {
+            theServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        theServletResponse.setStatus(HttpServletResponse.SC_OK);
+        theServletResponse.setContentType(encoding.getResourceContentTypeNonLegacy());
+        theServletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        theServletResponse.setContentLength(body.length);
+        theServletResponse.getOutputStream().write(body);
+        theServletResponse.getOutputStream().flush();
+        return false;
+    }
+
     @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
     public void onOutgoingResponse(
             RequestDetails theRequestDetails,
@@ -36,21 +154,158 @@ public class CapabilityStatementCustomizer {
             if (mode != null) {
                 var modeValue = mode[0];
                 if (modeValue.equals("terminology")) {
-                    TerminologyCapabilities tc = new TerminologyCapabilities();
-                    CapabilityStatement cs = ((CapabilityStatement) theResource).copy();
-                    tc.setId(cs.getId());
-                    tc.setMeta(cs.getMeta());
-                    tc.setUrl(cs.getUrl());
-                    tc.setVersion(cs.getVersion());
-                    tc.setName(cs.getName());
-                    tc.setStatus(cs.getStatus());
-                    tc.setDate(cs.getDate());
-
-                    theResponseDetails.setResponseResource(tc);
+                    theResponseDetails.setResponseResource(toTerminologyCapabilities((CapabilityStatement) theResource));
+                }
+            }
+
+            // 將最終文件編碼後快取, 之後的 metadata 請求直接回應
+            String slot = getCacheSlot(theRequestDetails);
+            if (slot != null && enabled) {
+                CachedDocument document = cacheDocument(theRequestDetails.getFhirContext(), slot, theResponseDetails.getResponseResource());
+                EncodingEnum encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getEncoding();
+                if (theServletRequestDetails != null && (encoding == EncodingEnum.JSON || encoding == EncodingEnum.XML)) {
+                    writeValidators(theServletRequestDetails.getServletResponse(),
+                            encoding == EncodingEnum.JSON ? document.jsonEtag : document.xmlEtag,
+                            document.lastModified);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the cached documents so the next metadata request is answered by the server again,
+     * e.g. after a configuration change.
+     */
+    public void invalidate() {
+        documents.clear();
+    }
+
+    private void invalidateIfSearchParameter(IBaseResource theResource) {
+        if (theResource != null && "SearchParameter".equals(theResource.fhirType()) && !documents.isEmpty()) {
+            logger.info("SearchParameter changed, dropping cached capability documents");
+            invalidate();
+        }
+    }
+
+    private boolean isExpired(CachedDocument document) {
+        return !timeToLive.isZero() && !timeToLive.isNegative() && document.createdAt.plus(timeToLive).isBefore(Instant.now());
+    }
+
+    /**
+     * Asks the server for its CapabilityStatement and caches every slot, so no {@code metadata} request has to
+     * wait for it. On failure the documents are cached by the first {@code metadata} requests instead.
+     */
+    private void buildDocuments(RequestDetails theRequestDetails) {
+        if (!(theRequestDetails instanceof ServletRequestDetails servletRequestDetails)
+                || !(theRequestDetails.getServer() instanceof RestfulServer server)) {
+            return;
+        }
+        try {
+            CapabilityStatement capabilityStatement = (CapabilityStatement) server.getCapabilityStatement(servletRequestDetails);
+            TerminologyCapabilities terminologyCapabilities = toTerminologyCapabilities(capabilityStatement);
+            FhirContext fhirContext = theRequestDetails.getFhirContext();
+            for (String suffix : new String[]{"", PRETTY_SUFFIX}) {
+                cacheDocument(fhirContext, FULL_MODE + suffix, capabilityStatement);
+                cacheDocument(fhirContext, TERMINOLOGY_MODE + suffix, terminologyCapabilities);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to build the capability documents, caching them on the first metadata requests", e);
+        }
+    }
+
+    private static TerminologyCapabilities toTerminologyCapabilities(CapabilityStatement theCapabilityStatement) {
+        TerminologyCapabilities tc = new TerminologyCapabilities();
+        CapabilityStatement cs = theCapabilityStatement.copy();
+        tc.setId(cs.getId());
+        tc.setMeta(cs.getMeta());
+        tc.setUrl(cs.getUrl());
+        tc.setVersion(cs.getVersion());
+        tc.setName(cs.getName());
+        tc.setStatus(cs.getStatus());
+        tc.setDate(cs.getDate());
+        return tc;
+    }
+
+    private CachedDocument cacheDocument(FhirContext fhirContext, String slot, IBaseResource theResource) {
+        boolean pretty = slot.endsWith(PRETTY_SUFFIX);
+        byte[] json = fhirContext.newJsonParser().setPrettyPrint(pretty)
+                .encodeResourceToString(theResource).getBytes(StandardCharsets.UTF_8);
+        byte[] xml = fhirContext.newXmlParser().setPrettyPrint(pretty)
+                .encodeResourceToString(theResource).getBytes(StandardCharsets.UTF_8);
+        String jsonEtag = etag(json);
+        String xmlEtag = etag(xml);
+        Instant now = Instant.now();
+
+        CachedDocument previous = documents.get(slot);
+        Instant lastModified = previous != null && previous.jsonEtag.equals(jsonEtag) && previous.xmlEtag.equals(xmlEtag)
+                ? previous.lastModified
+                : now.truncatedTo(ChronoUnit.SECONDS);
+        CachedDocument document = new CachedDocument(json, xml, jsonEtag, xmlEtag, lastModified, now);
+        documents.put(slot, document);
+        logger.info("Cached {} capability document, ETag {}", slot, jsonEtag);
+        return document;
+    }
+
+    /**
+     * Returns the cache slot (mode and pretty printing) for the request, or {@code null} if the request asks
+     * for a variant that is not cached (other modes, {@code _summary} or {@code _elements}).
+     */
+    private static String getCacheSlot(RequestDetails theRequestDetails) {
+        Map<String, String[]> params = theRequestDetails.getParameters();
+        if (params.containsKey(Constants.PARAM_SUMMARY) || params.containsKey(Constants.PARAM_ELEMENTS)) {
+            return null;
+        }
+        String[] mode = params.get("mode");
+        String slot;
+        if (mode == null || mode.length == 0 || FULL_MODE.equals(mode[0])) {
+            slot = FULL_MODE;
+        } else if (TERMINOLOGY_MODE.equals(mode[0])) {
+            slot = TERMINOLOGY_MODE;
+        } else {
+            return null;
+        }
+        return RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails) ? slot + PRETTY_SUFFIX : slot;
+    }
+
+    private static boolean isNotModified(HttpServletRequest theServletRequest, String etag, Instant lastModified) {
+        String ifNoneMatch = theServletRequest.getHeader(Constants.HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String value = candidate.trim();
+                if (value.equals("*") || value.equals(etag) || value.equals("W/" + etag)) {
+                    return true;
                 }
             }
+            return false;
+        }
+        try {
+            long ifModifiedSince = theServletRequest.getDateHeader(Constants.HEADER_IF_MODIFIED_SINCE);
+            return ifModifiedSince >= 0 && lastModified.toEpochMilli() <= ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
 
+    private static void writeValidators(HttpServletResponse theServletResponse, String etag, Instant lastModified) {
+        theServletResponse.setHeader(Constants.HEADER_ETAG, etag);
+        theServletResponse.setDateHeader(Constants.HEADER_LAST_MODIFIED, lastModified.toEpochMilli());
+        theServletResponse.setHeader("Vary", Constants.HEADER_ACCEPT);
+    }
 
+    private static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record CachedDocument(byte[] json,
+                                  byte[] xml,
+                                  String jsonEtag,
+                                  String xmlEtag,
+                                  Instant lastModified,
+                                  Instant createdAt) {
+    }
 }
@@ -0,0 +1,128 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Long-lived validator for the code systems HAPI handles in {@link CommonCodeSystemsTerminologyService}
+ * (languages, mime types, currencies, UCUM and USPS).
+ * <p>
+ * Code systems that HAPI can enumerate are indexed into a code-to-display map once at construction.
+ * Grammar-based systems (BCP-47, mime types, UCUM) are answered by a single shared
+ * {@link CommonCodeSystemsTerminologyService} and the results are kept in a bounded index,
+ * so a repeated code is answered by a hash lookup.
+ */
+public class CommonCodeValidator {
+    private static final Logger logger = LoggerFactory.getLogger(CommonCodeValidator.class);
+
+    static final Set<String> CODE_SYSTEM_URLS = Set.of(
+            CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.USPS_CODESYSTEM_URL
+    );
+
+    static final Set<String> VALUE_SET_URLS = Set.of(
+            CommonCodeSystemsTerminologyService.LANGUAGES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.MIMETYPES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.CURRENCIES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.UCUM_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.ALL_LANGUAGES_VALUESET_URL,
+            CommonCodeSystemsTerminologyService.USPS_VALUESET_URL
+    );
+
+    // Value sets that contain their whole code system. The "languages" value set is only a subset of BCP-47, so it is not listed.
+    private static final Map<String, String> VALUE_SET_TO_CODE_SYSTEM = Map.of(
+            CommonCodeSystemsTerminologyService.ALL_LANGUAGES_VALUESET_URL, CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.MIMETYPES_VALUESET_URL, CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.CURRENCIES_VALUESET_URL, CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.UCUM_VALUESET_URL, CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.USPS_VALUESET_URL, CommonCodeSystemsTerminologyService.USPS_CODESYSTEM_URL
+    );
+
+    private final CommonCodeSystemsTerminologyService service;
+    private final ValidationSupportContext validationSupportContext;
+    private final ConceptValidationOptions options = new ConceptValidationOptions().setInferSystem(true);
+    private final Map<String, Map<String, String>> enumeratedCodeSystems = new HashMap<>();
+    private final Cache<String, IValidationSupport.CodeValidationResult> results;
+
+    public CommonCodeValidator(FhirContext ctx) {
+        this(ctx, EnvironmentSettings.getLong("COMMON_CODE_INDEX_MAX_SIZE", 50_000));
+    }
+
+    public CommonCodeValidator(FhirContext ctx, long maximumIndexSize) {
+        this.service = new CommonCodeSystemsTerminologyService(ctx);
+        this.validationSupportContext = new ValidationSupportContext(service);
+        this.results = CacheBuilder.newBuilder().maximumSize(maximumIndexSize).build();
+
+        for (String system : CODE_SYSTEM_URLS) {
+            IBaseResource codeSystem = service.fetchCodeSystem(system);
+            if (codeSystem instanceof CodeSystem cs && cs.getContent() == CodeSystem.CodeSystemContentMode.COMPLETE) {
+                Map<String, String> codes = new HashMap<>();
+                cs.getConcept().forEach(concept -> codes.put(concept.getCode(), concept.getDisplay()));
+                enumeratedCodeSystems.put(system, codes);
+                logger.info("Indexed {} codes of {}", codes.size(), system);
+            }
+        }
+    }
+
+    public boolean isSupportedCodeSystem(String system) {
+        return system != null && CODE_SYSTEM_URLS.contains(system);
+    }
+
+    /**
+     * Returns the code system a common value set draws from, or {@code null} if it is not a common value set.
+     */
+    public String getCodeSystemForValueSet(String valueSetUrl) {
+        return valueSetUrl == null ? null : VALUE_SET_TO_CODE_SYSTEM.get(valueSetUrl);
+    }
+
+    /**
+     * Validates a code against a common code system, returning {@code null} if the system is not supported.
+     */
+    public IValidationSupport.CodeValidationResult validateCode(String system, String code) {
+        if (!isSupportedCodeSystem(system) || code == null) {
+            return null;
+        }
+
+        Map<String, String> codes = enumeratedCodeSystems.get(system);
+        if (codes != null) {
+            // CodeValidationResult is "ok" when it carries a code, so only valid codes set it
+            if (codes.containsKey(code)) {
+                return new IValidationSupport.CodeValidationResult()
+                        .setCode(code)
+                        .setDisplay(codes.get(code));
+            }
+            return new IValidationSupport.CodeValidationResult()
+                    .setSeverity(IValidationSupport.IssueSeverity.ERROR)
+                    .setMessage("Code " + code + " is not valid for system: " + system);
+        }
+
+        try {
+            return results.get(system + "|" + code, () -> {
+                IValidationSupport.CodeValidationResult result = service.validateCode(validationSupportContext, options, system, code, null, null);
+                return result != null ? result : new IValidationSupport.CodeValidationResult()
+                        .setSeverity(IValidationSupport.IssueSeverity.ERROR)
+                        .setMessage("Unable to validate code " + code + " in system " + system);
+            });
+        } catch (ExecutionException e) {
+            logger.warn("Failed to validate {}|{}", system, code, e.getCause());
+            return null;
+        }
+    }
+}
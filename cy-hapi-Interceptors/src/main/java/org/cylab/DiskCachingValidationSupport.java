@@ -0,0 +1,350 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import ca.uhn.fhir.util.VersionUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupportWrapper;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps generated StructureDefinition snapshots and ValueSet expansions on local disk, so a restarted server does
+ * not generate them again.
+ * <p>
+ * Wraps the validation support that does the work (typically the snapshot generator and the in-memory terminology
+ * service of the validation chain). Entries are stored as gzip-compressed JSON, one file per entry named after a hash
+ * of the input, under {@code <dir>/<HAPI version>/<hash of the package list>}; a new HAPI version or a different set
+ * of packages therefore starts from an empty cache instead of reusing stale results. All entries of the current
+ * version are read into memory, still compressed, when the wrapper is created.
+ * <p>
+ * The directory only changes with the packages, so an expansion is stored only if every code system and value set
+ * it draws on comes from a package: the HL7 core package and the common code systems, plus the IG packages given as
+ * {@code packageSupport}. Likewise a snapshot is stored only if every StructureDefinition in its base chain comes
+ * from a package. Expansions and snapshots that need a resource stored in the server's database, which may change
+ * without a restart, are not stored.
+ * <p>
+ * Inputs are identified by url and version when they are the package's own resource, and by a hash of their content
+ * otherwise. Entries read back are kept parsed in memory, and a snapshot is also kept for the input instance it was
+ * generated from, so asking again for the snapshot of the same instance neither hashes the input nor parses an entry.
+ * Up to {@code VALIDATION_DISK_CACHE_MEMORY_ENTRIES} entries of each kind are kept.
+ * <p>
+ * This project does not build the validation chain; the JPA starter's configuration wraps the generating supports
+ * before adding them, e.g.
+ * {@code chain.addValidationSupport(DiskCachingValidationSupport.wrap(ctx, new SnapshotGeneratingValidationSupport(ctx)))}.
+ */
+public class DiskCachingValidationSupport extends BaseValidationSupportWrapper {
+    private static final Logger logger = LoggerFactory.getLogger(DiskCachingValidationSupport.class);
+    private static final String FILE_SUFFIX = ".json.gz";
+
+    private final FhirContext fhirContext;
+    private final Path directory;
+    private final Map<String, byte[]> entries = new ConcurrentHashMap<>();
+    private final Cache<String, IBaseResource> parsedEntries;
+    private final Cache<IBaseResource, IBaseResource> snapshotsByInput;
+    private final IValidationSupport packageSupport;
+
+    /**
+     * @param cacheDirectory root directory of the cache
+     * @param packages       identifies the loaded conformance packages, e.g. {@code hl7.fhir.r4.core#4.0.1,tw.gov.mohw.twcore#0.3.2}
+     */
+    public DiskCachingValidationSupport(FhirContext fhirContext, IValidationSupport delegate, Path cacheDirectory, String packages) {
+        this(fhirContext, delegate, cacheDirectory, packages, null);
+    }
+
+    /**
+     * @param packageSupport resolves the code systems and value sets of the IG packages listed in {@code packages}
+     *                       (e.g. an {@code NpmPackageValidationSupport}), or {@code null} if only the core package
+     *                       is loaded
+     */
+    public DiskCachingValidationSupport(FhirContext fhirContext, IValidationSupport delegate, Path cacheDirectory, String packages,
+                                        IValidationSupport packageSupport) {
+        super(fhirContext, delegate);
+        this.fhirContext = fhirContext;
+        this.directory = cacheDirectory.resolve(VersionUtil.getVersion()).resolve(sha256(packages).substring(0, 16));
+        this.packageSupport = createPackageSupport(fhirContext, packageSupport);
+        long memoryEntries = Math.max(0, EnvironmentSettings.getLong("VALIDATION_DISK_CACHE_MEMORY_ENTRIES", 1_000));
+        this.parsedEntries = CacheBuilder.newBuilder().maximumSize(memoryEntries).build();
+        // weakKeys 以物件識別比對, 同一個 input 物件不需再計算雜湊
+        this.snapshotsByInput = CacheBuilder.newBuilder().weakKeys().maximumSize(memoryEntries).build();
+        load();
+    }
+
+    /**
+     * Wraps {@code delegate} when {@code VALIDATION_DISK_CACHE_DIR} is set, otherwise returns it unchanged.
+     * The package list for versioning comes from {@code VALIDATION_DISK_CACHE_PACKAGES}.
+     */
+    public static IValidationSupport wrap(FhirContext fhirContext, IValidationSupport delegate) {
+        return wrap(fhirContext, delegate, null);
+    }
+
+    /**
+     * Like {@link #wrap(FhirContext, IValidationSupport)}, also caching expansions that draw on the IG packages
+     * resolved by {@code packageSupport}.
+     */
+    public static IValidationSupport wrap(FhirContext fhirContext, IValidationSupport delegate, IValidationSupport packageSupport) {
+        String cacheDirectory = EnvironmentSettings.getString("VALIDATION_DISK_CACHE_DIR", null);
+        if (cacheDirectory == null || cacheDirectory.isEmpty()) {
+            return delegate;
+        }
+        return new DiskCachingValidationSupport(fhirContext, delegate, Path.of(cacheDirectory),
+                EnvironmentSettings.getString("VALIDATION_DISK_CACHE_PACKAGES", ""), packageSupport);
+    }
+
+    @Override
+    public IBaseResource generateSnapshot(ValidationSupportContext theValidationSupportContext,
+                                          IBaseResource theInput,
+                                          String theUrl,
+                                          String theWebUrl,
+                                          String theProfileName) {
+        IBaseResource snapshot = theInput != null ? snapshotsByInput.getIfPresent(theInput) : null;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        String key = key("snapshot", theUrl, theWebUrl, theProfileName, inputKey(theInput));
+        snapshot = read(key);
+        if (snapshot == null) {
+            snapshot = super.generateSnapshot(theValidationSupportContext, theInput, theUrl, theWebUrl, theProfileName);
+            if (snapshot != null && hasPackagedBaseChain(theInput)) {
+                write(key, snapshot);
+            }
+        }
+        if (snapshot != null && theInput != null) {
+            snapshotsByInput.put(theInput, snapshot);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public ValueSetExpansionOutcome expandValueSet(ValidationSupportContext theValidationSupportContext,
+                                                   ValueSetExpansionOptions theExpansionOptions,
+                                                   IBaseResource theValueSetToExpand) {
+        String options = theExpansionOptions == null ? "" :
+                theExpansionOptions.getOffset() + "|" + theExpansionOptions.getCount() + "|" +
+                        theExpansionOptions.isIncludeHierarchy() + "|" + theExpansionOptions.isFailOnMissingCodeSystem() + "|" +
+                        theExpansionOptions.getFilter() + "|" + theExpansionOptions.getTheDisplayLanguage();
+        String key = key("expansion", options, inputKey(theValueSetToExpand));
+        IBaseResource cached = read(key);
+        if (cached != null) {
+            return new ValueSetExpansionOutcome(cached);
+        }
+        ValueSetExpansionOutcome outcome = super.expandValueSet(theValidationSupportContext, theExpansionOptions, theValueSetToExpand);
+        // 只保存成功的展開結果, 錯誤可能是暫時性的
+        if (outcome != null && outcome.getError() == null && outcome.getValueSet() != null &&
+                isFromPackages(theValueSetToExpand)) {
+            write(key, outcome.getValueSet());
+        }
+        return outcome;
+    }
+
+    /**
+     * Returns {@code true} if every code system and value set the ValueSet includes or excludes, directly or through
+     * the value sets it includes, is provided by a package rather than the server's database.
+     */
+    private boolean isFromPackages(IBaseResource theValueSet) {
+        if (!(theValueSet instanceof ValueSet valueSet)) {
+            return false;
+        }
+        ValidationSupportContext context = new ValidationSupportContext(packageSupport);
+        Set<String> visited = new HashSet<>();
+        List<ValueSet> pending = new ArrayList<>(List.of(valueSet));
+        while (!pending.isEmpty()) {
+            ValueSet current = pending.remove(pending.size() - 1);
+            List<ValueSet.ConceptSetComponent> sets = new ArrayList<>(current.getCompose().getInclude());
+            sets.addAll(current.getCompose().getExclude());
+            for (ValueSet.ConceptSetComponent set : sets) {
+                if (set.hasSystem() && !packageSupport.isCodeSystemSupported(context, set.getSystem()) &&
+                        packageSupport.fetchCodeSystem(set.getSystem()) == null) {
+                    return false;
+                }
+                for (CanonicalType included : set.getValueSet()) {
+                    if (!visited.add(included.getValue())) {
+                        continue;
+                    }
+                    // 被引用的 ValueSet 必須也來自 package, 並檢查它引用的內容
+                    if (!(packageSupport.fetchValueSet(included.getValue()) instanceof ValueSet packaged)) {
+                        return false;
+                    }
+                    pending.add(packaged);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if every StructureDefinition the profile derives from, up to the root, is provided by a
+     * package rather than the server's database.
+     */
+    private boolean hasPackagedBaseChain(IBaseResource theProfile) {
+        if (!(theProfile instanceof StructureDefinition profile)) {
+            return false;
+        }
+        Set<String> visited = new HashSet<>();
+        String base = profile.getBaseDefinition();
+        while (base != null) {
+            if (!visited.add(base) || !(packageSupport.fetchStructureDefinition(base) instanceof StructureDefinition packaged)) {
+                return false;
+            }
+            base = packaged.getBaseDefinition();
+        }
+        return true;
+    }
+
+    /**
+     * Identifies an input: a package's own resource by its url and version, any other resource by a hash of its
+     * content. Resources read from the server's database carry a {@code meta.versionId} and are always hashed.
+     */
+    private String inputKey(IBaseResource resource) {
+        if (resource instanceof MetadataResource metadata && metadata.hasUrl() && metadata.hasVersion() &&
+                !metadata.getMeta().hasVersionId()) {
+            MetadataResource packaged = packageSupport.fetchResource(metadata.getClass(), metadata.getUrl());
+            if (packaged != null && metadata.getVersion().equals(packaged.getVersion())) {
+                return "package|" + metadata.getUrl() + "|" + metadata.getVersion();
+            }
+        }
+        return contentHash(resource);
+    }
+
+    private static IValidationSupport createPackageSupport(FhirContext fhirContext, IValidationSupport packageSupport) {
+        ValidationSupportChain chain = new ValidationSupportChain(
+                new DefaultProfileValidationSupport(fhirContext),
+                new CommonCodeSystemsTerminologyService(fhirContext));
+        if (packageSupport != null) {
+            chain.addValidationSupport(packageSupport);
+        }
+        return chain;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    entries.put(name.substring(0, name.length() - FILE_SUFFIX.length()), Files.readAllBytes(file));
+                }
+            }
+            logger.info("Loaded {} cached snapshots and expansions from {}", entries.size(), directory);
+        } catch (IOException e) {
+            logger.warn("Failed to load the validation cache from {}, starting empty", directory, e);
+        }
+    }
+
+    private IBaseResource read(String key) {
+        IBaseResource parsed = parsedEntries.getIfPresent(key);
+        if (parsed != null) {
+            return parsed;
+        }
+        byte[] compressed = entries.get(key);
+        if (compressed == null) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8)) {
+            parsed = fhirContext.newJsonParser().parseResource(reader);
+            parsedEntries.put(key, parsed);
+            return parsed;
+        } catch (Exception e) {
+            logger.warn("Dropping unreadable validation cache entry {}", key, e);
+            entries.remove(key);
+            return null;
+        }
+    }
+
+    private void write(String key, IBaseResource resource) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+            fhirContext.newJsonParser().encodeResourceToWriter(resource, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] bytes = compressed.toByteArray();
+        entries.put(key, bytes);
+        parsedEntries.put(key, resource);
+
+        // 先寫入暫存檔再搬移, 避免其他 pod 或重新啟動時讀到寫到一半的檔案
+        try {
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporary, bytes);
+            Files.move(temporary, directory.resolve(key + FILE_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to persist validation cache entry {}", key, e);
+        }
+    }
+
+    private String contentHash(IBaseResource resource) {
+        if (resource == null) {
+            return "";
+        }
+        MessageDigest digest = sha256Digest();
+        // 直接將編碼結果寫入 digest, 不建立整份 JSON 字串
+        try (Writer writer = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest), StandardCharsets.UTF_8)) {
+            fhirContext.newJsonParser().encodeResourceToWriter(resource, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String key(String... parts) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            joined.append(part != null ? part : "").append('\u0000');
+        }
+        return sha256(joined.toString());
+    }
+
+    private static String sha256(String value) {
+        return HexFormat.of().formatHex(sha256Digest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.cylab;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads interceptor settings from environment variables, falling back to a default
+ * when the variable is missing or cannot be parsed.
+ */
+final class EnvironmentSettings {
+    private static final Logger logger = LoggerFactory.getLogger(EnvironmentSettings.class);
+
+    private EnvironmentSettings() {
+    }
+
+    static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value '{}' for {}, using default {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,55 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.instance.model.api.IBase;
+
+import java.util.Optional;
+
+/**
+ * FHIRPath expressions used by the interceptors, parsed once when the class is loaded.
+ * <p>
+ * Evaluation goes through a single shared {@link IFhirPath} built from the cached R4 context,
+ * so the request path never creates a context or parses an expression string.
+ */
+final class FhirPathExpressions {
+    static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+    private static final IFhirPath FHIR_PATH = FHIR_CONTEXT.newFhirPath();
+
+    private static final String COMMON_CODE_SYSTEM_FILTER = String.format("where(system='%s' or system='%s' or system='%s' or system='%s' or system='%s')",
+            CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL,
+            CommonCodeSystemsTerminologyService.USPS_CODESYSTEM_URL
+    );
+
+    static final IFhirPath.IParsedExpression PARAMETER_VALUE_SET = parse("Parameters.parameter.where(name='valueSet')");
+    static final IFhirPath.IParsedExpression PARAMETER_CODE_VALUE = parse("Parameters.parameter.where(name='code').value");
+    static final IFhirPath.IParsedExpression PARAMETER_RESULT = parse("Parameters.parameter.where(name='result')");
+
+    static final IFhirPath.IParsedExpression VALUE_SET_COMMON_CODE_SYSTEM =
+            parse("ValueSet.compose.include." + COMMON_CODE_SYSTEM_FILTER + ".system");
+
+    private FhirPathExpressions() {
+    }
+
+    static <T extends IBase> Optional<T> evaluateFirst(IBase theInput, IFhirPath.IParsedExpression theExpression, Class<T> theReturnType) {
+        long start = System.nanoTime();
+        try {
+            return FHIR_PATH.evaluateFirst(theInput, theExpression, theReturnType);
+        } finally {
+            InterceptorMetrics.recordPhase(InterceptorMetrics.Phase.FHIRPATH, start);
+        }
+    }
+
+    private static IFhirPath.IParsedExpression parse(String theExpression) {
+        try {
+            return FHIR_PATH.parse(theExpression);
+        } catch (Exception e) {
+            throw new IllegalStateException("Invalid FHIRPath expression: " + theExpression, e);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Membership index of inline ValueSets sent to {@code ValueSet/$validate-code}, keyed by a hash of their compose.
+ * <p>
+ * Each compose is compiled once into hash sets of {@code system|code}. Includes that cannot be enumerated
+ * (whole code systems, filters, versions) only record their system, and value set imports make the whole
+ * compose opaque. The compose alone only decides that a code is not a member, through an explicit exclude or by not
+ * listing it. A code the compose lists is confirmed against the current version of its CodeSystem, and must exist there
+ * and not be inactive, before the lookup answers that it is a member. Every other case returns {@code null} so the
+ * server's own terminology is used.
+ */
+public class InlineValueSetIndex {
+    private static final Logger logger = LoggerFactory.getLogger(InlineValueSetIndex.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final List<String> STATUS_PROPERTIES = List.of("inactive", "status");
+    private static final Set<String> INACTIVE_STATUSES = Set.of("inactive", "retired", "deprecated");
+
+    private final Cache<String, CompiledCompose> cache;
+
+    public InlineValueSetIndex() {
+        this(EnvironmentSettings.getLong("INLINE_VALUESET_INDEX_MAX_CONCEPTS", 1_000_000));
+    }
+
+    /**
+     * @param maximumConcepts upper bound on the number of concepts held across all compiled value sets
+     */
+    public InlineValueSetIndex(long maximumConcepts) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, maximumConcepts))
+                .weigher((String key, CompiledCompose compose) -> compose.weight())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Looks the code up in the inline ValueSet, compiling its compose on first use.
+     *
+     * @param terminologySupport terminology confirming codes the compose lists, or {@code null} to leave them to the server
+     * @return the membership, or {@code null} if it cannot be decided here
+     */
+    Membership lookup(ParametersScan.Parameter theValueSet, String system, String version, String code, String display,
+                      IValidationSupport terminologySupport) {
+        String hash = theValueSet.digestCompose();
+        if (hash == null || code == null || version != null) {
+            return null;
+        }
+
+        CompiledCompose compose;
+        try {
+            compose = cache.get(hash, () -> compile(theValueSet.getRawCompose()));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.warn("Failed to compile inline ValueSet compose", e);
+            return null;
+        }
+        Membership membership = compose.lookup(system, code, display);
+        if (membership == null || !membership.member()) {
+            return membership;
+        }
+        return isActiveInCodeSystem(terminologySupport, membership.system(), code) ? membership : null;
+    }
+
+    /**
+     * Returns {@code true} if the current version of the CodeSystem has the code and does not mark it inactive.
+     */
+    private static boolean isActiveInCodeSystem(IValidationSupport terminologySupport, String system, String code) {
+        if (terminologySupport == null) {
+            return false;
+        }
+        IValidationSupport.LookupCodeResult result;
+        try {
+            result = terminologySupport.lookupCode(new ValidationSupportContext(terminologySupport),
+                    new LookupCodeRequest(system, code, null, STATUS_PROPERTIES));
+        } catch (RuntimeException e) {
+            logger.debug("Failed to look up {}|{}", system, code, e);
+            return false;
+        }
+        // 找不到或已停用的 code 交給伺服器判斷
+        if (result == null || !result.isFound()) {
+            return false;
+        }
+        for (IValidationSupport.BaseConceptProperty property : result.getProperties()) {
+            String value = property instanceof IValidationSupport.StringConceptProperty string ? string.getValue() :
+                    property instanceof IValidationSupport.CodingConceptProperty coding ? coding.getCode() : null;
+            if ("inactive".equals(property.getPropertyName()) && "true".equalsIgnoreCase(value) ||
+                    "status".equals(property.getPropertyName()) && value != null && INACTIVE_STATUSES.contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static CompiledCompose compile(byte[] rawCompose) {
+        CompiledCompose compose = new CompiledCompose();
+        try (JsonParser parser = JSON_FACTORY.createParser(rawCompose)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                compose.opaque = true;
+                return compose;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (("include".equals(field) || "exclude".equals(field)) && token == JsonToken.START_ARRAY) {
+                    boolean include = "include".equals(field);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        compileConceptSet(parser, compose, include);
+                    }
+                } else if ("lockedDate".equals(field) || "id".equals(field) || "extension".equals(field)) {
+                    parser.skipChildren();
+                } else {
+                    // inactive 等其他影響展開結果的欄位無法在此判斷
+                    compose.opaque = true;
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            compose.opaque = true;
+        }
+        return compose;
+    }
+
+    private static void compileConceptSet(JsonParser parser, CompiledCompose compose, boolean include) throws IOException {
+        String system = null;
+        boolean versioned = false;
+        boolean filtered = false;
+        boolean imports = false;
+        Map<String, String> concepts = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("system".equals(field) && token.isScalarValue()) {
+                system = parser.getText();
+            } else if ("version".equals(field)) {
+                versioned = true;
+                parser.skipChildren();
+            } else if ("concept".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    compileConcept(parser, concepts);
+                }
+            } else if ("filter".equals(field)) {
+                filtered = true;
+                parser.skipChildren();
+            } else if ("valueSet".equals(field)) {
+                imports = true;
+                parser.skipChildren();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (imports || system == null) {
+            if (include) {
+                compose.opaque = true;
+            } else {
+                compose.openExclude = true;
+            }
+            return;
+        }
+
+        if (include) {
+            compose.includeSystems.add(system);
+            if (versioned || filtered || concepts.isEmpty()) {
+                compose.openSystems.add(system);
+            } else {
+                for (Map.Entry<String, String> concept : concepts.entrySet()) {
+                    compose.members.put(system + "|" + concept.getKey(), concept.getValue());
+                }
+            }
+        } else if (versioned || filtered || concepts.isEmpty()) {
+            compose.openExclude = true;
+        } else {
+            for (String code : concepts.keySet()) {
+                compose.excluded.add(system + "|" + code);
+            }
+        }
+    }
+
+    private static void compileConcept(JsonParser parser, Map<String, String> concepts) throws IOException {
+        String code = null;
+        String display = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("code".equals(field) && token.isScalarValue()) {
+                code = parser.getText();
+            } else if ("display".equals(field) && token.isScalarValue()) {
+                display = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (code != null) {
+            concepts.put(code, display);
+        }
+    }
+
+    /**
+     * Result of a definitive lookup. {@code display} is the concept's display from the compose, if any.
+     */
+    record Membership(boolean member, String system, String display) {
+    }
+
+    private static final class CompiledCompose {
+        private final Map<String, String> members = new HashMap<>();
+        private final Set<String> excluded = new HashSet<>();
+        private final Set<String> includeSystems = new HashSet<>();
+        private final Set<String> openSystems = new HashSet<>();
+        private boolean opaque;
+        private boolean openExclude;
+
+        Membership lookup(String system, String code, String display) {
+            if (opaque) {
+                return null;
+            }
+            if (system == null) {
+                // 只有單一 code system 時才能推斷 code 所屬的 system
+                if (includeSystems.size() != 1) {
+                    return null;
+                }
+                system = includeSystems.iterator().next();
+            }
+
+            String key = system + "|" + code;
+            if (excluded.contains(key)) {
+                return new Membership(false, system, null);
+            }
+            if (members.containsKey(key)) {
+                String conceptDisplay = members.get(key);
+                if (openExclude || (display != null && conceptDisplay != null && !display.equals(conceptDisplay))) {
+                    return null;
+                }
+                return new Membership(true, system, conceptDisplay);
+            }
+            if (openSystems.contains(system)) {
+                return null;
+            }
+            return new Membership(false, system, null);
+        }
+
+        int weight() {
+            return 1 + members.size() + excluded.size();
+        }
+    }
+}
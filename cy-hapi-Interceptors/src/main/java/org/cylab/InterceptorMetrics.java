@@ -0,0 +1,251 @@
+package org.cylab;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency, size and outcome metrics of the interceptors, published through Micrometer's global registry.
+ * <p>
+ * The recording methods are static so every class can use them without wiring; meters are created once and looked
+ * up from a map afterwards, and with {@code METRICS_ENABLED=false} the methods return immediately. A Prometheus
+ * registry is added to {@link Metrics#globalRegistry} and served by {@code GET [base]/$interceptor-metrics}, by
+ * default to loopback clients only; a server that already exports the global registry (e.g. through Spring Boot
+ * actuator) sees the same meters.
+ */
+public class InterceptorMetrics implements OperationRouter.RouteProvider {
+    private static final String METRICS_OPERATION = "$interceptor-metrics";
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String NO_OPERATION = "none";
+
+    static final boolean ENABLED = EnvironmentSettings.getBoolean("METRICS_ENABLED", true);
+    private static final PrometheusMeterRegistry PROMETHEUS = ENABLED ? createPrometheusRegistry() : null;
+
+    private static final Map<String, Map<String, Timer>> HOOK_TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, DistributionSummary> REQUEST_SIZES = new ConcurrentHashMap<>();
+    private static final Map<String, DistributionSummary> RESPONSE_SIZES = new ConcurrentHashMap<>();
+    private static final Map<Integer, Counter> VALIDATOR_RESPONSES = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> VALIDATOR_ERRORS = new ConcurrentHashMap<>();
+    private static final Map<ValidateCodePath, Counter> VALIDATE_CODE_ANSWERS = new ConcurrentHashMap<>();
+    private static final Map<Phase, Timer> PHASE_TIMERS = new ConcurrentHashMap<>();
+
+    private final boolean localOnly;
+
+    public InterceptorMetrics() {
+        this(EnvironmentSettings.getBoolean("METRICS_LOCAL_ONLY", true));
+    }
+
+    /**
+     * @param localOnly whether the metrics endpoint answers loopback clients only
+     */
+    public InterceptorMetrics(boolean localOnly) {
+        this.localOnly = localOnly;
+    }
+
+    /**
+     * Time spent in a part of the request handling.
+     */
+    enum Phase {
+        PARSE("parse"),
+        FHIRPATH("fhirpath"),
+        ENCODE("encode"),
+        VALIDATOR("validator");
+
+        private final String tag;
+
+        Phase(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * What answered a {@code $validate-code} request.
+     */
+    enum ValidateCodePath {
+        CACHE("cache"),
+        COMMON_CODE("common_code"),
+        INLINE_INDEX("inline_index"),
+        BATCH("batch"),
+        JPA("jpa"),
+        COMMON_CODE_FALLBACK("common_code_fallback");
+
+        private final String tag;
+
+        ValidateCodePath(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static PrometheusMeterRegistry createPrometheusRegistry() {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Metrics.addRegistry(registry);
+        return registry;
+    }
+
+    /**
+     * Records the time a hook spent on a request, from {@code startNanos} ({@link System#nanoTime()}) until now.
+     */
+    static void recordHook(String hook, String operation, long startNanos) {
+        if (!ENABLED) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        String op = operation != null ? operation : NO_OPERATION;
+        // 先以 get 查詢, 已建立的 meter 不需配置任何物件
+        Map<String, Timer> timers = HOOK_TIMERS.get(hook);
+        if (timers == null) {
+            timers = HOOK_TIMERS.computeIfAbsent(hook, key -> new ConcurrentHashMap<>());
+        }
+        Timer timer = timers.get(op);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(op, key -> Timer.builder("interceptor.hook.duration")
+                    .description("Time spent in interceptor hooks")
+                    .tag("hook", hook)
+                    .tag("operation", key)
+                    .publishPercentileHistogram()
+                    .register(Metrics.globalRegistry));
+        }
+        timer.record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time spent in a phase, from {@code startNanos} ({@link System#nanoTime()}) until now.
+     */
+    static void recordPhase(Phase phase, long startNanos) {
+        if (!ENABLED) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        PHASE_TIMERS.computeIfAbsent(phase, key -> Timer.builder("interceptor.phase.duration")
+                        .description("Time spent parsing, evaluating FHIRPath, encoding and waiting on the validator")
+                        .tag("phase", key.tag)
+                        .publishPercentileHistogram()
+                        .register(Metrics.globalRegistry))
+                .record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    static void recordRequestBody(String operation, long bytes) {
+        if (!ENABLED) {
+            return;
+        }
+        size(REQUEST_SIZES, "interceptor.request.body.size", "Size of request bodies read by the interceptors", operation)
+                .record(bytes);
+    }
+
+    static void recordResponseBody(String operation, long bytes) {
+        if (!ENABLED) {
+            return;
+        }
+        size(RESPONSE_SIZES, "interceptor.response.body.size", "Size of responses written by the interceptors (after compression)", operation)
+                .record(bytes);
+    }
+
+    /**
+     * Counts a validator call by its status, and as an error when it failed, was rejected or answered with a server error.
+     */
+    static void recordValidatorResponse(int status) {
+        if (!ENABLED) {
+            return;
+        }
+        VALIDATOR_RESPONSES.computeIfAbsent(status, key -> Counter.builder("interceptor.validator.responses")
+                        .description("Validator calls by HTTP status")
+                        .tag("status", statusTag(key))
+                        .register(Metrics.globalRegistry))
+                .increment();
+
+        String reason = status == ValidationResponseResult.STATUS_FAILED ? "failed" :
+                status == ValidationResponseResult.STATUS_REJECTED ? "rejected" :
+                        status >= 500 ? "server_error" : null;
+        if (reason != null) {
+            VALIDATOR_ERRORS.computeIfAbsent(reason, key -> Counter.builder("interceptor.validator.errors")
+                            .description("Validator calls that did not produce a validation result")
+                            .tag("reason", key)
+                            .register(Metrics.globalRegistry))
+                    .increment();
+        }
+    }
+
+    static void recordValidateCodeAnswer(ValidateCodePath path) {
+        if (!ENABLED) {
+            return;
+        }
+        VALIDATE_CODE_ANSWERS.computeIfAbsent(path, key -> Counter.builder("interceptor.validate_code.answers")
+                        .description("$validate-code requests by the path that answered them")
+                        .tag("path", key.tag)
+                        .register(Metrics.globalRegistry))
+                .increment();
+    }
+
+    private static DistributionSummary size(Map<String, DistributionSummary> summaries, String name, String description, String operation) {
+        String op = operation != null ? operation : NO_OPERATION;
+        DistributionSummary summary = summaries.get(op);
+        if (summary != null) {
+            return summary;
+        }
+        return summaries.computeIfAbsent(op, key -> DistributionSummary.builder(name)
+                .description(description)
+                .baseUnit("bytes")
+                .tag("operation", key)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry));
+    }
+
+    private static String statusTag(int status) {
+        return switch (status) {
+            case ValidationResponseResult.STATUS_FAILED -> "failed";
+            case ValidationResponseResult.STATUS_REJECTED -> "rejected";
+            default -> Integer.toString(status);
+        };
+    }
+
+    @Override
+    public void registerRoutes(OperationRouter router) {
+        router.route(null, METRICS_OPERATION, RequestTypeEnum.GET, this::processMetricsRequest);
+    }
+
+    private boolean processMetricsRequest(OperationRequest request) throws IOException {
+        HttpServletResponse theServletResponse = request.getServletResponse();
+        if (PROMETHEUS == null || (localOnly && !isLoopback(request.getServletRequest().getRemoteAddr()))) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                    .setDiagnostics(PROMETHEUS == null ? "Metrics are disabled" : "Metrics are only available to local clients");
+            ServletResponses.writeResource(request.getRequestDetails(), theServletResponse, outcome, HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+
+        theServletResponse.setStatus(HttpServletResponse.SC_OK);
+        theServletResponse.setContentType(PROMETHEUS_CONTENT_TYPE);
+        Writer writer = theServletResponse.getWriter();
+        PROMETHEUS.scrape(writer);
+        writer.flush();
+        return false;
+    }
+
+    static boolean isLoopback(String remoteAddress) {
+        if (remoteAddress == null) {
+            return false;
+        }
+        try {
+            // 來源位址為 IP 字串, 不會進行 DNS 查詢
+            return InetAddress.getByName(remoteAddress).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.cylab;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the interceptor hot paths at startup and reports whether the node is ready for traffic.
+ * <p>
+ * The warm-up is off unless {@code WARMUP_ENABLED=true}. When enabled, a bundled set of representative requests
+ * ({@code $validate}, {@code $validate-code} and {@code metadata?mode=terminology}) is replayed against the server's
+ * own base URL, so class loading, model scanning, parser and FHIRPath initialization, JIT compilation and the first
+ * validator connection happen before real clients arrive. {@code GET [base]/$ready} answers {@code 503} until the
+ * warm-up has reported its result and {@code 200} afterwards; point the load balancer's readiness probe at it.
+ * <p>
+ * The base URL is {@code WARMUP_BASE_URL} if set; the warm-up then starts when {@link ValidationServerInterceptor}
+ * is registered and waits until the server accepts connections. Otherwise it is taken from the server itself: the
+ * first {@code $ready} probe starts the warm-up against the local port, context path and servlet path that probe
+ * arrived on.
+ * <p>
+ * Failed warm-up requests are only logged and counted: the node still becomes ready once the warm-up ends or
+ * {@code WARMUP_TIMEOUT_MS} has passed, so a broken sample never keeps it out of rotation.
+ */
+public class InterceptorWarmUp implements OperationRouter.RouteProvider {
+    private static final Logger logger = LoggerFactory.getLogger(InterceptorWarmUp.class);
+    private static final String READY_OPERATION = "$ready";
+    private static final String NOT_READY_RETRY_AFTER_SECONDS = "5";
+    private static final long SERVER_POLL_INTERVAL_MS = 500;
+    private static final List<WarmUpRequest> REQUESTS = List.of(
+            new WarmUpRequest("GET", "metadata?mode=terminology", null),
+            new WarmUpRequest("POST", "Patient/$validate", "warmup/validate-patient.json"),
+            new WarmUpRequest("POST", "ValueSet/$validate-code", "warmup/validate-code-valueset.json"),
+            new WarmUpRequest("POST", "CodeSystem/$validate-code", "warmup/validate-code-codesystem.json")
+    );
+
+    private final boolean enabled;
+    private final String configuredBaseUrl;
+    private final int iterations;
+    private final Duration timeout;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    private volatile boolean ready;
+    private volatile long warmUpMillis = -1;
+    private volatile int warmUpFailures;
+    private volatile Thread warmUpThread;
+
+    public InterceptorWarmUp() {
+        this(
+                EnvironmentSettings.getBoolean("WARMUP_ENABLED", false),
+                EnvironmentSettings.getString("WARMUP_BASE_URL", null),
+                EnvironmentSettings.getInt("WARMUP_ITERATIONS", 3),
+                Duration.ofMillis(EnvironmentSettings.getLong("WARMUP_TIMEOUT_MS", 120_000))
+        );
+    }
+
+    /**
+     * @param baseUrl    the server's own FHIR base URL, as reachable from inside the node, or {@code null} to take it
+     *                   from the first {@code $ready} probe
+     * @param iterations how many times the full set of requests is replayed
+     * @param timeout    the longest the warm-up may take, including waiting for the server to accept connections
+     */
+    public InterceptorWarmUp(boolean enabled, String baseUrl, int iterations, Duration timeout) {
+        this.enabled = enabled;
+        this.configuredBaseUrl = baseUrl == null || baseUrl.isEmpty() ? null : withTrailingSlash(baseUrl);
+        this.iterations = Math.max(1, iterations);
+        this.timeout = timeout;
+        // 停用暖機時視為一開始就已就緒
+        this.ready = !enabled;
+    }
+
+    /**
+     * Returns {@code true} once the warm-up has finished, or if it is disabled.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Starts the warm-up in the background if {@code WARMUP_BASE_URL} is configured; otherwise the first
+     * {@code $ready} probe starts it. Later calls do nothing.
+     */
+    public void start() {
+        if (configuredBaseUrl != null) {
+            start(configuredBaseUrl);
+        }
+    }
+
+    private synchronized void start(String baseUrl) {
+        if (!enabled || warmUpThread != null) {
+            return;
+        }
+        Thread thread = new Thread(() -> warmUp(baseUrl), "interceptor-warm-up");
+        thread.setDaemon(true);
+        warmUpThread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = warmUpThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        Thread thread = warmUpThread;
+        return thread != null && thread.isAlive();
+    }
+
+    @Override
+    public void registerRoutes(OperationRouter router) {
+        router.route(null, READY_OPERATION, RequestTypeEnum.GET, this::processReadyRequest);
+    }
+
+    private boolean processReadyRequest(OperationRequest request) throws IOException {
+        ServletRequestDetails theRequestDetails = request.getRequestDetails();
+        HttpServletResponse theServletResponse = request.getServletResponse();
+        if (isReady()) {
+            Parameters parameters = new Parameters();
+            parameters.addParameter("ready", new BooleanType(true));
+            if (warmUpMillis >= 0) {
+                parameters.addParameter("warmUpMillis", new DecimalType(warmUpMillis));
+                parameters.addParameter("warmUpFailures", new DecimalType(warmUpFailures));
+            }
+            ServletResponses.writeResource(theRequestDetails, theServletResponse, parameters, HttpServletResponse.SC_OK);
+        } else {
+            if (warmUpThread == null) {
+                start(getLocalBaseUrl(request.getServletRequest()));
+            }
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                    .setCode(OperationOutcome.IssueType.TRANSIENT)
+                    .setDiagnostics("Server is warming up");
+            theServletResponse.setHeader(Constants.HEADER_RETRY_AFTER, NOT_READY_RETRY_AFTER_SECONDS);
+            ServletResponses.writeResource(theRequestDetails, theServletResponse, outcome, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the base URL the probe reached the server on, addressed to the local host.
+     */
+    private static String getLocalBaseUrl(HttpServletRequest theServletRequest) {
+        String contextPath = theServletRequest.getContextPath() != null ? theServletRequest.getContextPath() : "";
+        String servletPath = theServletRequest.getServletPath() != null ? theServletRequest.getServletPath() : "";
+        return withTrailingSlash(theServletRequest.getScheme() + "://localhost:" + theServletRequest.getLocalPort()
+                + contextPath + servletPath);
+    }
+
+    private static String withTrailingSlash(String baseUrl) {
+        return baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    private void warmUp(String baseUrl) {
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        int failures = 0;
+        try {
+            if (!awaitServer(baseUrl, deadline)) {
+                logger.warn("Server at {} did not answer within {} ms, skipping warm-up", baseUrl, timeout.toMillis());
+                return;
+            }
+            for (int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+                for (WarmUpRequest request : REQUESTS) {
+                    if (!send(baseUrl, request, deadline)) {
+                        failures++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("Warm-up interrupted");
+        } finally {
+            warmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            warmUpFailures = failures;
+            ready = true;
+            logger.info("Warm-up finished in {} ms with {} failed requests, server is ready", warmUpMillis, failures);
+        }
+    }
+
+    /**
+     * Waits until the server accepts requests; the warm-up starts while the server is still being set up.
+     */
+    private boolean awaitServer(String baseUrl, long deadline) throws InterruptedException {
+        HttpRequest probe = HttpRequest.newBuilder(URI.create(baseUrl + "metadata"))
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build();
+        while (System.nanoTime() < deadline) {
+            try {
+                if (httpClient.send(probe, HttpResponse.BodyHandlers.discarding()).statusCode() < 500) {
+                    return true;
+                }
+            } catch (IOException e) {
+                logger.debug("Server at {} is not accepting requests yet", baseUrl, e);
+            }
+            Thread.sleep(SERVER_POLL_INTERVAL_MS);
+        }
+        return false;
+    }
+
+    private boolean send(String baseUrl, WarmUpRequest request, long deadline) throws InterruptedException {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0) {
+            return false;
+        }
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + request.path()))
+                    .timeout(Duration.ofMillis(remainingMillis))
+                    .header("Accept", Constants.CT_FHIR_JSON_NEW);
+            if (request.body() == null) {
+                builder.GET();
+            } else {
+                builder.header("Content-Type", Constants.CT_FHIR_JSON_NEW)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(readSample(request.body())));
+            }
+            int status = httpClient.send(builder.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+            // $validate 對不合格的資源回應 422, 同樣完成了暖機
+            if (status >= 500) {
+                logger.warn("Warm-up request {} {} answered {}", request.method(), request.path(), status);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Warm-up request {} {} failed", request.method(), request.path(), e);
+            return false;
+        }
+    }
+
+    private static byte[] readSample(String name) throws IOException {
+        try (InputStream inputStream = InterceptorWarmUp.class.getClassLoader().getResourceAsStream(name)) {
+            if (inputStream == null) {
+                throw new IOException("Missing warm-up sample " + name);
+            }
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private record WarmUpRequest(String method, String path, String body) {
+    }
+}
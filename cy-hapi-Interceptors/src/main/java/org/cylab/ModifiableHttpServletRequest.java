@@ -1,61 +1,280 @@
 package org.cylab;
 
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
 import jakarta.servlet.ReadListener;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletRequestWrapper;
 import jakarta.servlet.ServletInputStream;
 
+/**
+ * Buffers the request body so it can be read more than once and replaced.
+ * <p>
+ * Bodies up to {@code REQUEST_BODY_MEMORY_LIMIT} bytes are kept in memory, larger ones are
+ * spilled to a temporary file. Bodies over {@code REQUEST_BODY_MAX_SIZE} bytes are rejected
+ * with {@code 413 Payload Too Large}, before reading when the request declares its length.
+ * <p>
+ * {@link OperationRouter} deletes the temporary file with {@link #release()} when the server has finished the
+ * request; a file that is never released is deleted once the wrapper is garbage collected. Large bodies are best
+ * read through {@link #getInputStream()} or {@link #getBodyFile()}, which do not copy the file into memory.
+ */
 public class ModifiableHttpServletRequest extends HttpServletRequestWrapper {
+    private static final long DEFAULT_MEMORY_LIMIT = EnvironmentSettings.getLong("REQUEST_BODY_MEMORY_LIMIT", 1024 * 1024);
+    private static final long DEFAULT_MAX_SIZE = EnvironmentSettings.getLong("REQUEST_BODY_MAX_SIZE", 100L * 1024 * 1024);
+    private static final int BUFFER_SIZE = 8192;
+    private static final Cleaner CLEANER = Cleaner.create();
+
     private byte[] body;
+    private long bodyLength;
+    private Path bodyFile;
+    private Cleaner.Cleanable bodyFileCleanup;
+    private boolean released;
 
     public ModifiableHttpServletRequest(HttpServletRequest request) throws IOException {
-        super(request);
-        // 讀取原始的 request body
-        body = IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8).getBytes();
+        this(request, DEFAULT_MEMORY_LIMIT, DEFAULT_MAX_SIZE);
     }
 
-    @Override
-    public ServletInputStream getInputStream() throws IOException {
-        final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(body);
+    public ModifiableHttpServletRequest(HttpServletRequest request, long memoryLimit, long maxSize) throws IOException {
+        super(request);
 
-        return new ServletInputStream() {
-            @Override
-            public int read() throws IOException {
-                return byteArrayInputStream.read();
-            }
+        long declaredLength = request.getContentLengthLong();
+        if (maxSize >= 0 && declaredLength > maxSize) {
+            throw payloadTooLarge(maxSize);
+        }
 
-            @Override
-            public boolean isFinished() {
-                return byteArrayInputStream.available() == 0;
+        // 讀取原始的 request body (不做字元編碼轉換)
+        try (InputStream in = request.getInputStream()) {
+            if (declaredLength >= 0 && declaredLength <= memoryLimit) {
+                readDeclaredLength(in, (int) declaredLength);
+            } else {
+                readUnknownLength(in, memoryLimit, maxSize);
             }
+        }
+    }
 
-            @Override
-            public boolean isReady() {
-                return true;
+    private void readDeclaredLength(InputStream in, int declaredLength) throws IOException {
+        // 已知長度時一次配置剛好大小的陣列
+        byte[] buffer = in.readNBytes(declaredLength);
+        body = buffer;
+        bodyLength = buffer.length;
+    }
+
+    private void readUnknownLength(InputStream in, long memoryLimit, long maxSize) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            if (maxSize >= 0 && total > maxSize) {
+                throw payloadTooLarge(maxSize);
+            }
+            if (total > memoryLimit) {
+                spillToFile(memory, buffer, read, in, total, maxSize);
+                return;
             }
+            memory.write(buffer, 0, read);
+        }
+        body = memory.toByteArray();
+        bodyLength = body.length;
+    }
+
+    private void spillToFile(ByteArrayOutputStream memory, byte[] buffer, int pending, InputStream in, long total, long maxSize) throws IOException {
+        Path file = Files.createTempFile("cy-hapi-request-", ".body");
+        bodyFileCleanup = CLEANER.register(this, new DeleteFile(file));
+        bodyFile = file;
 
-            @Override
-            public void setReadListener(ReadListener readListener) {
-                throw new UnsupportedOperationException();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)) {
+            memory.writeTo(out);
+            out.write(buffer, 0, pending);
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (maxSize >= 0 && total > maxSize) {
+                    throw payloadTooLarge(maxSize);
+                }
+                out.write(buffer, 0, read);
             }
-        };
+        } catch (IOException | RuntimeException e) {
+            releaseBodyFile();
+            throw e;
+        }
+        bodyLength = total;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (released) {
+            throw new IOException("Request body has already been released");
+        }
+        InputStream in = bodyFile != null ?
+                new BufferedInputStream(Files.newInputStream(bodyFile), BUFFER_SIZE) :
+                new ByteArrayInputStream(body);
+        return new BodyInputStream(in);
     }
 
     @Override
     public BufferedReader getReader() throws IOException {
-        return new BufferedReader(new InputStreamReader(getInputStream()));
+        String encoding = getCharacterEncoding();
+        Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+    }
+
+    @Override
+    public int getContentLength() {
+        return bodyLength > Integer.MAX_VALUE ? -1 : (int) bodyLength;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        return bodyLength;
     }
 
     public void setBody(byte[] newBody) {
+        releaseBodyFile();
+        this.released = false;
         this.body = newBody;
+        this.bodyLength = newBody.length;
     }
 
+    /**
+     * Returns the whole body as a byte array.
+     * Bodies that were spilled to disk are read back into memory on each call;
+     * prefer {@link #getInputStream()} or {@link #getBodyFile()} when the body may be large.
+     */
     public byte[] getBody() {
-        return this.body;
+        if (released) {
+            throw new IllegalStateException("Request body has already been released");
+        }
+        if (bodyFile == null) {
+            return this.body;
+        }
+        try {
+            return Files.readAllBytes(bodyFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Returns the temporary file holding a body that was spilled to disk, or {@code null} if the body is held in
+     * memory. The file is deleted by {@link #release()}.
+     */
+    public Path getBodyFile() {
+        if (released) {
+            throw new IllegalStateException("Request body has already been released");
+        }
+        return bodyFile;
+    }
+
+    /**
+     * Deletes the temporary file of a spilled body. A body spilled to disk cannot be read afterwards;
+     * a body held in memory is left as is.
+     */
+    public void release() {
+        if (bodyFile != null) {
+            releaseBodyFile();
+            released = true;
+        }
+    }
+
+    private void releaseBodyFile() {
+        if (bodyFileCleanup != null) {
+            bodyFileCleanup.clean();
+            bodyFileCleanup = null;
+        }
+        bodyFile = null;
+    }
+
+    private static PayloadTooLargeException payloadTooLarge(long maxSize) {
+        return new PayloadTooLargeException("Request body exceeds the maximum allowed size of " + maxSize + " bytes");
+    }
+
+    private static final class DeleteFile implements Runnable {
+        private final Path file;
+
+        private DeleteFile(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private static final class BodyInputStream extends ServletInputStream {
+        private final InputStream delegate;
+        private boolean finished;
+
+        private BodyInputStream(InputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = delegate.read();
+            finished = value == -1;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = delegate.read(b, off, len);
+            finished = count == -1;
+            return count;
+        }
+
+        @Override
+        public byte[] readAllBytes() throws IOException {
+            byte[] bytes = delegate.readAllBytes();
+            finished = true;
+            return bytes;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return delegate.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return delegate.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException();
+        }
     }
 }
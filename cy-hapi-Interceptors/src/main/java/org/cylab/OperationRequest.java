@@ -0,0 +1,148 @@
+package org.cylab;
+
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * A request matched by {@link OperationRouter}, shared by every handler the request is routed to.
+ * <p>
+ * The body is buffered the first time a handler asks for it and the buffered request is handed to the server, so
+ * later handlers and the server itself read the same copy. A body spilled to disk is read into memory at most once,
+ * by the first call to {@link #getBody()}; handlers that can stream it use {@link #openBody()} or
+ * {@link #getBodyFile()} instead. A JSON {@code Parameters} body is scanned at most once; replacing the body
+ * discards the scan.
+ */
+public class OperationRequest {
+    private final ServletRequestDetails requestDetails;
+    private final HttpServletRequest servletRequest;
+    private final HttpServletResponse servletResponse;
+
+    private ModifiableHttpServletRequest bufferedRequest;
+    private byte[] body;
+    private ParametersScan parametersScan;
+    private boolean scanned;
+
+    OperationRequest(ServletRequestDetails requestDetails, HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
+        this.requestDetails = requestDetails;
+        this.servletRequest = servletRequest;
+        this.servletResponse = servletResponse;
+    }
+
+    public ServletRequestDetails getRequestDetails() {
+        return requestDetails;
+    }
+
+    /**
+     * Returns the request as received from the container, e.g. for headers or {@code startAsync()}.
+     */
+    public HttpServletRequest getServletRequest() {
+        return servletRequest;
+    }
+
+    public HttpServletResponse getServletResponse() {
+        return servletResponse;
+    }
+
+    public String getContentType() {
+        return servletRequest.getContentType();
+    }
+
+    /**
+     * Returns {@code true} if the request declares a JSON body ({@code application/json} or {@code application/fhir+json}).
+     */
+    public boolean isJson() {
+        String contentType = servletRequest.getContentType();
+        return contentType != null && contentType.contains("json");
+    }
+
+    /**
+     * Returns {@code true} if the request declares an XML body.
+     */
+    public boolean isXml() {
+        String contentType = servletRequest.getContentType();
+        return contentType != null && contentType.contains("xml");
+    }
+
+    /**
+     * Buffers the body on first use and installs the buffered request on the request details.
+     */
+    public ModifiableHttpServletRequest getBufferedRequest() throws IOException {
+        if (bufferedRequest == null) {
+            bufferedRequest = new ModifiableHttpServletRequest(servletRequest);
+            requestDetails.setServletRequest(bufferedRequest);
+            InterceptorMetrics.recordRequestBody(requestDetails.getOperation(), bufferedRequest.getBodyLength());
+        }
+        return bufferedRequest;
+    }
+
+    /**
+     * Returns the body as a byte array, reading a body that was spilled to disk on the first call only.
+     */
+    public byte[] getBody() throws IOException {
+        if (body == null) {
+            body = getBufferedRequest().getBody();
+        }
+        return body;
+    }
+
+    /**
+     * Opens the body for reading without copying a spilled body into memory.
+     */
+    public InputStream openBody() throws IOException {
+        if (body != null) {
+            return new ByteArrayInputStream(body);
+        }
+        return getBufferedRequest().getInputStream();
+    }
+
+    /**
+     * Returns the temporary file of a body that was spilled to disk, or {@code null} if the body is held in memory.
+     * The file is deleted when the server has finished the request.
+     */
+    public Path getBodyFile() throws IOException {
+        return body != null ? null : getBufferedRequest().getBodyFile();
+    }
+
+    public long getBodyLength() throws IOException {
+        return getBufferedRequest().getBodyLength();
+    }
+
+    /**
+     * Replaces the body the server will read.
+     */
+    public void setBody(byte[] body) throws IOException {
+        getBufferedRequest().setBody(body);
+        this.body = body;
+        parametersScan = null;
+        scanned = false;
+    }
+
+    /**
+     * Deletes the temporary file of a body that was spilled to disk, once the server no longer reads it.
+     */
+    void release() {
+        if (bufferedRequest != null) {
+            bufferedRequest.release();
+        }
+    }
+
+    /**
+     * Returns the scanned {@code Parameters} body, or {@code null} if the body is not a JSON {@code Parameters} resource.
+     */
+    ParametersScan getParametersScan() throws IOException {
+        if (!scanned) {
+            byte[] body = getBody();
+            long start = System.nanoTime();
+            parametersScan = ParametersScan.scan(body);
+            InterceptorMetrics.recordPhase(InterceptorMetrics.Phase.PARSE, start);
+            scanned = true;
+        }
+        return parametersScan;
+    }
+}
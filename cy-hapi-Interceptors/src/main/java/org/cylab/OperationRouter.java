@@ -0,0 +1,157 @@
+package org.cylab;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The single {@code SERVER_INCOMING_REQUEST_PRE_HANDLER_SELECTED} hook of the interceptors in this package.
+ * <p>
+ * Handlers are registered for a (resource, operation, method) triple by the {@link RouteProvider}s passed to the
+ * constructor and looked up in a table keyed by operation name, built once. Requests without an operation, or with
+ * an operation nobody registered, leave after one map lookup without allocating anything. A matched request is
+ * wrapped in one {@link OperationRequest} shared by all its handlers, so the body is buffered and scanned at most
+ * once. A body spilled to a temporary file is deleted in {@code SERVER_PROCESSING_COMPLETED}, after the server has
+ * read it.
+ * <p>
+ * The providers do not hook the pre-handler pointcut themselves: register the router (together with any other hooks
+ * of its providers) with the server, or register {@link ValidationServerInterceptor}, which does both.
+ */
+@Interceptor
+public class OperationRouter {
+    private static final Logger logger = LoggerFactory.getLogger(OperationRouter.class);
+
+    /**
+     * Matches any resource type as well as server-level ({@code [base]/$op}) requests.
+     */
+    public static final String ANY_RESOURCE = "*";
+    private static final String HOOK_NAME = "pre_handler_selected";
+    private static final String REQUEST_USER_DATA = OperationRouter.class.getName() + ".request";
+
+    private final Map<String, Route[]> routes;
+    private Map<String, List<Route>> pendingRoutes;
+
+    public OperationRouter(RouteProvider... providers) {
+        this(Arrays.asList(providers));
+    }
+
+    public OperationRouter(List<? extends RouteProvider> providers) {
+        this.routes = buildRoutes(providers);
+    }
+
+    /**
+     * Registers a handler. Only valid while a {@link RouteProvider} is registering its routes.
+     *
+     * @param resourceName the resource type, {@code null} for server-level operations or {@link #ANY_RESOURCE}
+     * @param operation    the operation name including the {@code $}, e.g. {@code $validate-code}
+     */
+    public void route(String resourceName, String operation, RequestTypeEnum method, Handler handler) {
+        if (pendingRoutes == null) {
+            throw new IllegalStateException("Routes can only be added while the route table is built");
+        }
+        pendingRoutes.computeIfAbsent(operation, key -> new ArrayList<>()).add(new Route(resourceName, method, handler));
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLER_SELECTED)
+    public boolean onIncomingRequest(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+        String operation = theRequestDetails != null ? theRequestDetails.getOperation() : null;
+        if (operation == null) {
+            return true;
+        }
+        Route[] candidates = routes.get(operation);
+        if (candidates == null) {
+            return true;
+        }
+
+        String resourceName = theRequestDetails.getResourceName();
+        RequestTypeEnum method = theRequestDetails.getRequestType();
+        OperationRequest request = null;
+        for (Route route : candidates) {
+            if (!route.matches(resourceName, method)) {
+                continue;
+            }
+            if (request == null) {
+                request = new OperationRequest(theRequestDetails, theServletRequest, theServletResponse);
+                theRequestDetails.getUserData().put(REQUEST_USER_DATA, request);
+            }
+            // handler 已自行回應時不再交給後續 handler 與 server
+            long start = System.nanoTime();
+            boolean proceed = route.handler().handle(request);
+            InterceptorMetrics.recordHook(HOOK_NAME, operation, start);
+            if (!proceed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the temporary file of a request body that was spilled to disk. Runs whether the request was answered
+     * by a handler or by the server; async handlers work on their own copy of the body.
+     */
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void onProcessingCompleted(RequestDetails theRequestDetails) {
+        if (theRequestDetails != null && theRequestDetails.getUserData().get(REQUEST_USER_DATA) instanceof OperationRequest request) {
+            request.release();
+        }
+    }
+
+    private Map<String, Route[]> buildRoutes(List<? extends RouteProvider> providers) {
+        pendingRoutes = new HashMap<>();
+        try {
+            for (RouteProvider provider : providers) {
+                provider.registerRoutes(this);
+            }
+            Map<String, Route[]> table = new HashMap<>();
+            pendingRoutes.forEach((operation, list) -> table.put(operation, list.toArray(new Route[0])));
+            logger.info("Routing operations {} to {} route providers", table.keySet(), providers.size());
+            return Map.copyOf(table);
+        } finally {
+            pendingRoutes = null;
+        }
+    }
+
+    /**
+     * Handles a routed request.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @return {@code true} to continue with the next handler and the server, {@code false} if the response has been written
+         */
+        boolean handle(OperationRequest request) throws IOException;
+    }
+
+    /**
+     * Implemented by classes that answer or rewrite operation requests through the router.
+     */
+    public interface RouteProvider {
+        void registerRoutes(OperationRouter router);
+    }
+
+    private record Route(String resourceName, RequestTypeEnum method, Handler handler) {
+        boolean matches(String theResourceName, RequestTypeEnum theMethod) {
+            if (method != theMethod) {
+                return false;
+            }
+            if (ANY_RESOURCE.equals(resourceName)) {
+                return true;
+            }
+            return resourceName == null ? theResourceName == null : resourceName.equals(theResourceName);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.cylab;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a JSON {@code Parameters} resource from scanned parameters and primitive values,
+ * copying scanned values byte for byte.
+ */
+final class ParametersJsonWriter {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private boolean empty = true;
+
+    ParametersJsonWriter() {
+        write(out, "{\"resourceType\":\"Parameters\",\"parameter\":[");
+    }
+
+    ParametersJsonWriter addParameter(ParametersScan.Parameter parameter) {
+        separate();
+        write(out, "{\"name\":");
+        writeString(out, parameter.getName());
+        write(out, ",");
+        writeString(out, parameter.getValueField());
+        write(out, ":");
+        parameter.writeRawValue(out);
+        write(out, "}");
+        return this;
+    }
+
+    ParametersJsonWriter addParameter(String name, String valueField, String value) {
+        separate();
+        writeParameter(out, name, valueField, value);
+        return this;
+    }
+
+    /**
+     * Closes the resource and returns its bytes; the writer cannot be used afterwards.
+     */
+    byte[] toByteArray() {
+        write(out, "]}");
+        return out.toByteArray();
+    }
+
+    static void writeParameter(ByteArrayOutputStream out, String name, String valueField, String value) {
+        write(out, "{\"name\":");
+        writeString(out, name);
+        write(out, ",");
+        writeString(out, valueField);
+        write(out, ":");
+        writeString(out, value);
+        write(out, "}");
+    }
+
+    private void separate() {
+        if (!empty) {
+            write(out, ",");
+        }
+        empty = false;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        out.write('"');
+        out.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(value));
+        out.write('"');
+    }
+
+    private static void write(ByteArrayOutputStream out, String json) {
+        out.writeBytes(json.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,379 @@
+package org.cylab;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Token-level scan of a JSON {@code Parameters} body.
+ * <p>
+ * Only the values the {@code $validate-code} pre-processing needs are captured (parameter names,
+ * primitive values, Coding fields and a few ValueSet fields), together with the byte range of
+ * every value, so the body can be rewritten by copying ranges instead of parsing it into a model.
+ */
+final class ParametersScan {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final byte[] body;
+    private final List<Parameter> parameters = new ArrayList<>();
+    private int parameterArrayEnd = -1;
+
+    private ParametersScan(byte[] body) {
+        this.body = body;
+    }
+
+    /**
+     * Scans the body, returning {@code null} if it is not a well-formed JSON {@code Parameters} resource.
+     */
+    static ParametersScan scan(byte[] body) {
+        ParametersScan scan = new ParametersScan(body);
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            return scan.scanParameters(parser) ? scan : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    List<Parameter> getParameters() {
+        return Collections.unmodifiableList(parameters);
+    }
+
+    Parameter getFirst(String name) {
+        for (Parameter parameter : parameters) {
+            if (name.equals(parameter.getName())) {
+                return parameter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the body with a primitive parameter appended to {@code Parameters.parameter}.
+     */
+    byte[] withParameter(String name, String valueField, String value) {
+        if (parameterArrayEnd < 0) {
+            throw new IllegalStateException("Body has no parameter array");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 64);
+        out.write(body, 0, parameterArrayEnd);
+        if (!parameters.isEmpty()) {
+            out.write(',');
+        }
+        ParametersJsonWriter.writeParameter(out, name, valueField, value);
+        out.write(body, parameterArrayEnd, body.length - parameterArrayEnd);
+        return out.toByteArray();
+    }
+
+    private boolean scanParameters(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+
+        String resourceType = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("resourceType".equals(field) && token == JsonToken.VALUE_STRING) {
+                resourceType = parser.getText();
+            } else if ("parameter".equals(field) && token == JsonToken.START_ARRAY) {
+                while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                    parameters.add(scanParameter(parser));
+                }
+                if (token != JsonToken.END_ARRAY) {
+                    return false;
+                }
+                parameterArrayEnd = (int) parser.currentTokenLocation().getByteOffset();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return "Parameters".equals(resourceType);
+    }
+
+    private Parameter scanParameter(JsonParser parser) throws IOException {
+        Parameter parameter = new Parameter();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("name".equals(field)) {
+                parameter.name = parser.getText();
+            } else if ("resource".equals(field) && token == JsonToken.START_OBJECT) {
+                parameter.valueField = field;
+                parameter.start = (int) parser.currentTokenLocation().getByteOffset();
+                scanResource(parser, parameter);
+                parameter.end = (int) parser.currentLocation().getByteOffset();
+            } else if (field.startsWith("value")) {
+                parameter.valueField = field;
+                parameter.start = (int) parser.currentTokenLocation().getByteOffset();
+                if (token == JsonToken.START_OBJECT) {
+                    scanComplexValue(parser, parameter);
+                } else if (token.isScalarValue()) {
+                    parameter.value = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+                parameter.end = (int) parser.currentLocation().getByteOffset();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return parameter;
+    }
+
+    private static void scanComplexValue(JsonParser parser, Parameter parameter) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("coding".equals(field) && token == JsonToken.START_ARRAY) {
+                // CodeableConcept.coding
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parameter.codings.add(scanCoding(parser));
+                }
+                continue;
+            }
+            if (!token.isScalarValue()) {
+                parser.skipChildren();
+                continue;
+            }
+            switch (field) {
+                case "system" -> parameter.system = parser.getText();
+                case "code" -> parameter.code = parser.getText();
+                case "version" -> parameter.version = parser.getText();
+                case "display" -> parameter.display = parser.getText();
+                default -> {
+                }
+            }
+        }
+    }
+
+    private static Coding scanCoding(JsonParser parser) throws IOException {
+        String system = null;
+        String code = null;
+        String version = null;
+        String display = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (!token.isScalarValue()) {
+                parser.skipChildren();
+                continue;
+            }
+            switch (field) {
+                case "system" -> system = parser.getText();
+                case "code" -> code = parser.getText();
+                case "version" -> version = parser.getText();
+                case "display" -> display = parser.getText();
+                default -> {
+                }
+            }
+        }
+        return new Coding(system, code, version, display);
+    }
+
+    private static void scanResource(JsonParser parser, Parameter parameter) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("resourceType".equals(field) && token.isScalarValue()) {
+                parameter.resourceType = parser.getText();
+            } else if ("url".equals(field) && token.isScalarValue()) {
+                parameter.resourceUrl = parser.getText();
+            } else if ("compose".equals(field) && token == JsonToken.START_OBJECT) {
+                parameter.composeStart = (int) parser.currentTokenLocation().getByteOffset();
+                scanCompose(parser, parameter);
+                parameter.composeEnd = (int) parser.currentLocation().getByteOffset();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void scanCompose(JsonParser parser, Parameter parameter) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("include".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    String system = null;
+                    boolean restricted = false;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String includeField = parser.currentName();
+                        JsonToken includeToken = parser.nextToken();
+                        if ("system".equals(includeField) && includeToken.isScalarValue()) {
+                            system = parser.getText();
+                        } else {
+                            restricted |= "concept".equals(includeField) || "filter".equals(includeField) || "valueSet".equals(includeField);
+                            parser.skipChildren();
+                        }
+                    }
+                    if (system != null) {
+                        parameter.composeSystems.add(system);
+                        if (!restricted) {
+                            parameter.unrestrictedComposeSystems.add(system);
+                        }
+                    }
+                }
+            } else if ("exclude".equals(field)) {
+                parameter.composeHasExclude = true;
+                parser.skipChildren();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static String sha256(byte[] bytes, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes, offset, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One entry of {@code Parameters.parameter}. {@link #getValueField()} is the JSON property holding
+     * the value (e.g. {@code valueCoding} or {@code resource}) and the value's raw JSON is available
+     * through {@link #writeRawValue(ByteArrayOutputStream)}.
+     */
+    final class Parameter {
+        private String name;
+        private String valueField;
+        private String value;
+        private int start = -1;
+        private int end = -1;
+
+        private String system;
+        private String code;
+        private String version;
+        private String display;
+        private final List<Coding> codings = new ArrayList<>();
+
+        private String resourceType;
+        private String resourceUrl;
+        private final List<String> composeSystems = new ArrayList<>();
+        private final List<String> unrestrictedComposeSystems = new ArrayList<>();
+        private boolean composeHasExclude;
+        private int composeStart = -1;
+        private int composeEnd = -1;
+
+        String getName() {
+            return name;
+        }
+
+        String getValueField() {
+            return valueField;
+        }
+
+        boolean hasValue() {
+            return valueField != null;
+        }
+
+        boolean isResource() {
+            return "resource".equals(valueField);
+        }
+
+        /**
+         * Value of a primitive parameter, e.g. {@code valueCode} or {@code valueUri}.
+         */
+        String getValue() {
+            return value;
+        }
+
+        String getSystem() {
+            return system;
+        }
+
+        String getCode() {
+            return code;
+        }
+
+        String getVersion() {
+            return version;
+        }
+
+        String getDisplay() {
+            return display;
+        }
+
+        /**
+         * Codings of a {@code valueCodeableConcept}.
+         */
+        List<Coding> getCodings() {
+            return Collections.unmodifiableList(codings);
+        }
+
+        String getResourceType() {
+            return resourceType;
+        }
+
+        String getResourceUrl() {
+            return resourceUrl;
+        }
+
+        List<String> getComposeSystems() {
+            return Collections.unmodifiableList(composeSystems);
+        }
+
+        /**
+         * Systems included in the ValueSet compose as a whole, i.e. without concepts, filters or value set imports.
+         */
+        List<String> getUnrestrictedComposeSystems() {
+            return Collections.unmodifiableList(unrestrictedComposeSystems);
+        }
+
+        boolean hasComposeExclude() {
+            return composeHasExclude;
+        }
+
+        boolean hasCompose() {
+            return composeStart >= 0;
+        }
+
+        /**
+         * Raw JSON of {@code ValueSet.compose}, or {@code null} if the resource has none.
+         */
+        byte[] getRawCompose() {
+            return hasCompose() ? Arrays.copyOfRange(body, composeStart, composeEnd) : null;
+        }
+
+        void writeRawValue(ByteArrayOutputStream out) {
+            out.write(body, start, end - start);
+        }
+
+        /**
+         * SHA-256 of the value's raw JSON, used to identify inline resources such as a ValueSet.
+         */
+        String digestRawValue() {
+            return sha256(body, start, end - start);
+        }
+
+        /**
+         * SHA-256 of the raw JSON of {@code ValueSet.compose}, or {@code null} if the resource has none.
+         */
+        String digestCompose() {
+            return hasCompose() ? sha256(body, composeStart, composeEnd - composeStart) : null;
+        }
+    }
+
+    /**
+     * One {@code CodeableConcept.coding}.
+     */
+    record Coding(String system, String code, String version, String display) {
+    }
+}
@@ -0,0 +1,64 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.ServletContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Finds the terminology service the server validates codes with, so codes the interceptor cannot decide get the same
+ * answer as a {@code $validate-code} the server handles itself.
+ * <p>
+ * In the JPA server this is the {@code myJpaValidationSupportChain} bean, or else the primary {@link IValidationSupport}
+ * bean, of the Spring application context published in the servlet context. The bean is looked up on the first
+ * request that needs it and kept. {@link #get} returns {@code null} while no such bean can be found, e.g. when the
+ * server is not run by Spring; the validation support of the server's {@code FhirContext} is not used in its place,
+ * since it does not hold the server's code systems.
+ */
+public class ServerTerminology {
+    private static final Logger logger = LoggerFactory.getLogger(ServerTerminology.class);
+    private static final String ROOT_CONTEXT_ATTRIBUTE = "org.springframework.web.context.WebApplicationContext.ROOT";
+    private static final String JPA_VALIDATION_SUPPORT_CHAIN = "myJpaValidationSupportChain";
+
+    private volatile IValidationSupport terminologySupport;
+
+    public ServerTerminology() {
+    }
+
+    /**
+     * Uses the given terminology service instead of looking one up.
+     */
+    public ServerTerminology(IValidationSupport terminologySupport) {
+        this.terminologySupport = terminologySupport;
+    }
+
+    /**
+     * Returns the server's terminology service, or {@code null} if it is not available.
+     */
+    public IValidationSupport get(ServletRequestDetails theRequestDetails) {
+        IValidationSupport support = terminologySupport;
+        if (support == null && theRequestDetails != null && theRequestDetails.getServletRequest() != null) {
+            support = lookup(theRequestDetails.getServletRequest().getServletContext());
+            terminologySupport = support;
+        }
+        return support;
+    }
+
+    private static IValidationSupport lookup(ServletContext servletContext) {
+        if (servletContext == null || !(servletContext.getAttribute(ROOT_CONTEXT_ATTRIBUTE) instanceof ApplicationContext applicationContext)) {
+            return null;
+        }
+        try {
+            if (applicationContext.containsBean(JPA_VALIDATION_SUPPORT_CHAIN)) {
+                return applicationContext.getBean(JPA_VALIDATION_SUPPORT_CHAIN, IValidationSupport.class);
+            }
+            return applicationContext.getBeanProvider(IValidationSupport.class).getIfAvailable();
+        } catch (BeansException e) {
+            logger.warn("Failed to find the server's terminology service", e);
+            return null;
+        }
+    }
+}
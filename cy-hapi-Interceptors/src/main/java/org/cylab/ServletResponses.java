@@ -0,0 +1,165 @@
+package org.cylab;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import com.google.common.io.CountingOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes resources straight to the servlet response for hooks that answer a request themselves.
+ * <p>
+ * Resources are encoded directly into the response output stream, compressed with gzip or deflate when the
+ * client's {@code Accept-Encoding} allows it, and pretty-printed only when the request has {@code _pretty=true}.
+ */
+final class ServletResponses {
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    private ServletResponses() {
+    }
+
+    /**
+     * Writes the resource in the encoding the client asked for (JSON by default).
+     */
+    static void writeResource(RequestDetails theRequestDetails,
+                              HttpServletResponse theServletResponse,
+                              IBaseResource theResource,
+                              int theStatus) throws IOException {
+        EncodingEnum encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getEncoding();
+        writeResource(theRequestDetails, theServletResponse, theResource, theStatus, encoding);
+    }
+
+    /**
+     * Writes the resource in the given encoding.
+     */
+    static void writeResource(RequestDetails theRequestDetails,
+                              HttpServletResponse theServletResponse,
+                              IBaseResource theResource,
+                              int theStatus,
+                              EncodingEnum theEncoding) throws IOException {
+        IParser parser = theEncoding.newParser(theRequestDetails.getFhirContext());
+        parser.setPrettyPrint(isPrettyPrintRequested(theRequestDetails));
+        String contentEncoding = selectContentEncoding(theRequestDetails.getHeader(Constants.HEADER_ACCEPT_ENCODING));
+
+        theServletResponse.setStatus(theStatus);
+        theServletResponse.setHeader("Content-Type", theEncoding.getResourceContentTypeNonLegacy());
+        theServletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        theServletResponse.addHeader("Vary", Constants.HEADER_ACCEPT_ENCODING);
+        if (contentEncoding != null) {
+            theServletResponse.setHeader(Constants.HEADER_CONTENT_ENCODING, contentEncoding);
+        }
+
+        long start = System.nanoTime();
+        // 計算實際寫出(壓縮後)的位元組數
+        CountingOutputStream countingStream = new CountingOutputStream(theServletResponse.getOutputStream());
+        OutputStream outputStream = countingStream;
+        DeflaterOutputStream compressor = null;
+        Deflater deflater = null;
+        if (Constants.ENCODING_GZIP.equals(contentEncoding)) {
+            GzipStream gzipStream = new GzipStream(outputStream);
+            deflater = gzipStream.deflater();
+            compressor = gzipStream;
+            outputStream = compressor;
+        } else if (ENCODING_DEFLATE.equals(contentEncoding)) {
+            deflater = new Deflater();
+            compressor = new DeflaterOutputStream(outputStream, deflater, 8192);
+            outputStream = compressor;
+        }
+
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+            parser.encodeResourceToWriter(theResource, writer);
+            writer.flush();
+            if (compressor != null) {
+                // 只結束壓縮串流, 不關閉 servlet 的 output stream
+                compressor.finish();
+            }
+        } finally {
+            // 不關閉串流時 deflater 不會自行釋放 native 記憶體
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        theServletResponse.getOutputStream().flush();
+        InterceptorMetrics.recordPhase(InterceptorMetrics.Phase.ENCODE, start);
+        InterceptorMetrics.recordResponseBody(theRequestDetails.getOperation(), countingStream.getCount());
+    }
+
+    private static boolean isPrettyPrintRequested(RequestDetails theRequestDetails) {
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+        String[] pretty = parameters != null ? parameters.get(Constants.PARAM_PRETTY) : null;
+        return pretty != null && pretty.length > 0 && Constants.PARAM_PRETTY_VALUE_TRUE.equals(pretty[0]);
+    }
+
+    /**
+     * Picks gzip or deflate from an {@code Accept-Encoding} header, preferring the higher quality value and gzip
+     * on a tie. Returns {@code null} if neither is acceptable.
+     */
+    static String selectContentEncoding(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double wildcardQuality = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case Constants.ENCODING_GZIP, "x-gzip" -> gzipQuality = Math.max(gzipQuality, quality);
+                case ENCODING_DEFLATE -> deflateQuality = quality;
+                case "*" -> wildcardQuality = quality;
+                default -> {
+                }
+            }
+        }
+        // 未列出的編碼沿用 "*" 的權重
+        if (gzipQuality < 0) {
+            gzipQuality = wildcardQuality;
+        }
+        if (deflateQuality < 0) {
+            deflateQuality = wildcardQuality;
+        }
+        if (gzipQuality <= 0 && deflateQuality <= 0) {
+            return null;
+        }
+        return gzipQuality >= deflateQuality ? Constants.ENCODING_GZIP : ENCODING_DEFLATE;
+    }
+
+    /**
+     * A gzip stream whose deflater can be ended without closing the underlying servlet output stream.
+     */
+    private static final class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out) throws IOException {
+            super(out, 8192);
+        }
+
+        Deflater deflater() {
+            return def;
+        }
+    }
+}
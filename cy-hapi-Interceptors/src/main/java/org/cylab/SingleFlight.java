@@ -0,0 +1,83 @@
+package org.cylab;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls with the same key into one execution.
+ * <p>
+ * The first caller for a key runs the supplier; callers arriving while it is still running
+ * wait for and receive the same result. Once the call finishes the key is released, so later
+ * calls run again and never see a stale value.
+ */
+final class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    V execute(K key, Supplier<V> supplier) {
+        if (key == null) {
+            return supplier.get();
+        }
+
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        try {
+            V value = supplier.get();
+            call.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #execute(Object, Supplier)}: concurrent callers with the same key share
+     * the future returned by the first caller's supplier, and the key is released when that future completes.
+     */
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> supplier) {
+        if (key == null) {
+            return supplier.get();
+        }
+
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            supplier.get().whenComplete((value, error) -> {
+                inFlight.remove(key, call);
+                if (error != null) {
+                    call.completeExceptionally(error);
+                } else {
+                    call.complete(value);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, call);
+            call.completeExceptionally(e);
+        }
+        return call;
+    }
+
+    private static <V> V await(CompletableFuture<V> call) {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.cylab;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Parameters;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of {@code $validate-code} responses.
+ * <p>
+ * Entries are keyed by the operation, the coding (system, code, version, display) and the value set or code system
+ * the code is checked against: its canonical url and version, or a hash of the inline resource. Requests using any
+ * other parameter (e.g. {@code codeableConcept}, {@code date}, {@code displayLanguage}) are not cached.
+ * <p>
+ * Negative results ({@code result=false}) are kept in a separate cache with their own, usually shorter, time to live,
+ * so a code that becomes valid after a terminology load is not reported invalid for long.
+ * Responses are copied on the way in and out, so callers may modify what they get back.
+ * <p>
+ * Every {@link #clear()} starts a new generation. A caller reads {@link #getGeneration()} before it looks a key up
+ * and passes it to {@link #put}, so a response computed from terminology that changed in the meantime is not stored.
+ */
+public class TerminologyResultCache {
+    private static final Set<String> VALUE_SET_PARAMETERS =
+            Set.of("url", "valueSet", "valueSetVersion", "code", "system", "systemVersion", "display", "coding");
+    private static final Set<String> CODE_SYSTEM_PARAMETERS =
+            Set.of("url", "codeSystem", "code", "version", "display", "coding");
+
+    private final Cache<Key, Parameters> positiveCache;
+    private final Cache<Key, Parameters> negativeCache;
+    private final boolean enabled;
+    private final AtomicLong generation = new AtomicLong();
+
+    public TerminologyResultCache() {
+        this(
+                EnvironmentSettings.getLong("TERMINOLOGY_CACHE_MAX_SIZE", 10_000),
+                Duration.ofSeconds(EnvironmentSettings.getLong("TERMINOLOGY_CACHE_TTL_SECONDS", 600)),
+                Duration.ofSeconds(EnvironmentSettings.getLong("TERMINOLOGY_CACHE_NEGATIVE_TTL_SECONDS", 60))
+        );
+    }
+
+    public TerminologyResultCache(long maximumSize, Duration timeToLive, Duration negativeTimeToLive) {
+        this.enabled = maximumSize > 0 && !timeToLive.isZero() && !timeToLive.isNegative();
+        this.positiveCache = newCache(maximumSize, timeToLive);
+        this.negativeCache = newCache(maximumSize, negativeTimeToLive);
+    }
+
+    /**
+     * Returns the cache key for a {@code ValueSet} or {@code CodeSystem} {@code $validate-code} request,
+     * or {@code null} if the request cannot be cached.
+     */
+    static Key createKey(String theResourceName, ParametersScan theParameters) {
+        boolean valueSet = "ValueSet".equals(theResourceName);
+        Set<String> allowed = valueSet ? VALUE_SET_PARAMETERS : CODE_SYSTEM_PARAMETERS;
+        Set<String> seen = new HashSet<>();
+        for (ParametersScan.Parameter parameter : theParameters.getParameters()) {
+            if (!allowed.contains(parameter.getName()) || !seen.add(parameter.getName())) {
+                return null;
+            }
+        }
+
+        ParametersScan.Parameter coding = theParameters.getFirst("coding");
+        String system = valueSet ? getValue(theParameters, "system") : getValue(theParameters, "url");
+        String code = getValue(theParameters, "code");
+        String version = getValue(theParameters, valueSet ? "systemVersion" : "version");
+        String display = getValue(theParameters, "display");
+        if (coding != null && coding.hasValue()) {
+            system = system != null ? system : coding.getSystem();
+            code = code != null ? code : coding.getCode();
+            version = version != null ? version : coding.getVersion();
+            display = display != null ? display : coding.getDisplay();
+        }
+        if (code == null) {
+            return null;
+        }
+
+        ParametersScan.Parameter resource = theParameters.getFirst(valueSet ? "valueSet" : "codeSystem");
+        String resourceHash = resource != null && resource.isResource() ? resource.digestRawValue() : null;
+        return new Key(
+                theResourceName,
+                system,
+                code,
+                version,
+                display,
+                valueSet ? getValue(theParameters, "url") : null,
+                getValue(theParameters, "valueSetVersion"),
+                resourceHash,
+                false
+        );
+    }
+
+    Parameters get(Key key) {
+        if (key == null || !enabled) {
+            return null;
+        }
+        Parameters response = positiveCache.getIfPresent(key);
+        if (response == null) {
+            response = negativeCache.getIfPresent(key);
+        }
+        return response == null ? null : response.copy();
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} with the response computed afterwards.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Stores the response unless the cache was cleared since {@code theGeneration} was read.
+     */
+    void put(Key key, Parameters response, long theGeneration) {
+        if (key == null || !enabled || generation.get() != theGeneration) {
+            return;
+        }
+        if (isPositive(response)) {
+            positiveCache.put(key, response.copy());
+        } else {
+            negativeCache.put(key, response.copy());
+        }
+        // 與 clear 同時發生時移除剛放入的結果
+        if (generation.get() != theGeneration) {
+            positiveCache.invalidate(key);
+            negativeCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Drops every entry and starts a new generation. Called when a CodeSystem or ValueSet is written, since a value
+     * set may include other value sets and code systems, so an update cannot be mapped to the affected keys reliably.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        positiveCache.invalidateAll();
+        negativeCache.invalidateAll();
+    }
+
+    public long size() {
+        return positiveCache.size() + negativeCache.size();
+    }
+
+    public CacheStats stats() {
+        return positiveCache.stats().plus(negativeCache.stats());
+    }
+
+    private static boolean isPositive(Parameters response) {
+        return response.getParameter().stream()
+                .filter(p -> "result".equals(p.getName()))
+                .findFirst()
+                .map(p -> p.getValue() instanceof BooleanType b && b.booleanValue())
+                .orElse(false);
+    }
+
+    private static String getValue(ParametersScan theParameters, String name) {
+        ParametersScan.Parameter parameter = theParameters.getFirst(name);
+        return parameter != null ? parameter.getValue() : null;
+    }
+
+    private static Cache<Key, Parameters> newCache(long maximumSize, Duration timeToLive) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, maximumSize))
+                .expireAfterWrite(timeToLive.isNegative() ? Duration.ZERO : timeToLive)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Identity of a {@code $validate-code} request. {@code url} is the value set url for {@code ValueSet/$validate-code};
+     * for {@code CodeSystem/$validate-code} the code system url is carried in {@code system}.
+     * {@code batchEntry} keeps the results of {@link BatchCodeValidator}, which are built by the interceptor rather
+     * than returned by the server, apart from the responses of single requests.
+     */
+    record Key(String resourceName,
+               String system,
+               String code,
+               String version,
+               String display,
+               String url,
+               String valueSetVersion,
+               String resourceHash,
+               boolean batchEntry) {
+    }
+}
@@ -1,167 +1,349 @@
 package org.cylab;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.support.ConceptValidationOptions;
 import ca.uhn.fhir.context.support.IValidationSupport;
-import ca.uhn.fhir.context.support.ValidationSupportContext;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Pointcut;
-import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
-import jakarta.servlet.http.HttpServletRequest;
-import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import jakarta.servlet.http.HttpServletResponse;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ValidateCodeOpCustomizer {
+public class ValidateCodeOpCustomizer implements OperationRouter.RouteProvider {
     private static final Logger logger = LoggerFactory.getLogger(ValidateCodeOpCustomizer.class);
+    private static final String CACHE_KEY_USER_DATA = ValidateCodeOpCustomizer.class.getName() + ".cacheKey";
+    private static final String TERMINOLOGY_CHANGED_USER_DATA = ValidateCodeOpCustomizer.class.getName() + ".terminologyChanged";
+    private static final String OUTGOING_RESPONSE_HOOK = "outgoing_response";
+
+    private final CommonCodeValidator commonCodeValidator;
+    private final TerminologyResultCache terminologyResultCache;
+    private final InlineValueSetIndex inlineValueSetIndex;
+    private final BatchCodeValidator batchCodeValidator;
+    private final ServerTerminology serverTerminology;
+
+    public ValidateCodeOpCustomizer() {
+        this(new CommonCodeValidator(FhirContext.forR4Cached()));
+    }
 
-    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLER_SELECTED)
-    public void onIncomingRequest(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest) throws IOException {
+    public ValidateCodeOpCustomizer(CommonCodeValidator commonCodeValidator) {
+        this(commonCodeValidator, new TerminologyResultCache());
+    }
 
-        if (theRequestDetails == null) return;
+    public ValidateCodeOpCustomizer(CommonCodeValidator commonCodeValidator, TerminologyResultCache terminologyResultCache) {
+        this(commonCodeValidator, terminologyResultCache, new InlineValueSetIndex());
+    }
 
+    public ValidateCodeOpCustomizer(CommonCodeValidator commonCodeValidator,
+                                    TerminologyResultCache terminologyResultCache,
+                                    InlineValueSetIndex inlineValueSetIndex) {
+        this(commonCodeValidator, terminologyResultCache, inlineValueSetIndex,
+                BatchCodeValidator.fromEnvironment(commonCodeValidator, terminologyResultCache, inlineValueSetIndex));
+    }
 
-        String incomingResourceName = theRequestDetails.getResourceName();
-        String incomingOperation = theRequestDetails.getOperation();
+    /**
+     * @param batchCodeValidator validator for requests carrying many codings, or {@code null} to pass such requests
+     *                           to the server unchanged
+     */
+    public ValidateCodeOpCustomizer(CommonCodeValidator commonCodeValidator,
+                                    TerminologyResultCache terminologyResultCache,
+                                    InlineValueSetIndex inlineValueSetIndex,
+                                    BatchCodeValidator batchCodeValidator) {
+        this(commonCodeValidator, terminologyResultCache, inlineValueSetIndex, batchCodeValidator, new ServerTerminology());
+    }
 
-        if (incomingResourceName == null || incomingOperation == null) return;
+    /**
+     * @param serverTerminology the server's terminology service, confirming codes of inline ValueSets and answering
+     *                          batch entries
+     */
+    public ValidateCodeOpCustomizer(CommonCodeValidator commonCodeValidator,
+                                    TerminologyResultCache terminologyResultCache,
+                                    InlineValueSetIndex inlineValueSetIndex,
+                                    BatchCodeValidator batchCodeValidator,
+                                    ServerTerminology serverTerminology) {
+        this.commonCodeValidator = commonCodeValidator;
+        this.terminologyResultCache = terminologyResultCache;
+        this.inlineValueSetIndex = inlineValueSetIndex;
+        this.batchCodeValidator = batchCodeValidator;
+        this.serverTerminology = serverTerminology;
+    }
 
-        if (incomingResourceName.equals("ValueSet") && incomingOperation.equals("$validate-code") && theRequestDetails.getRequestType() == RequestTypeEnum.POST) {
-            valueSetValidateCodePreProcess(theRequestDetails, theServletRequest);
-        } else if (incomingResourceName.equals("CodeSystem") && incomingOperation.equals("$validate-code") && theRequestDetails.getRequestType() == RequestTypeEnum.POST) {
-            codeSystemValidateCodePreProcess(theRequestDetails, theServletRequest);
-        }
+    @Override
+    public void registerRoutes(OperationRouter router) {
+        router.route("ValueSet", "$validate-code", RequestTypeEnum.POST, this::valueSetValidateCodePreProcess);
+        router.route("CodeSystem", "$validate-code", RequestTypeEnum.POST, this::codeSystemValidateCodePreProcess);
     }
 
-    private static void valueSetValidateCodePreProcess(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest) throws IOException {
-        String contentType = theServletRequest.getContentType();
-        if (contentType.contains("application/json") || contentType.contains("application/fhir+json")) {
+    private boolean valueSetValidateCodePreProcess(OperationRequest request) throws IOException {
+        if (request.isJson()) {
             logger.info("Doing custom value set $validate-code pre-process");
+            ServletRequestDetails theRequestDetails = request.getRequestDetails();
+            HttpServletResponse theServletResponse = request.getServletResponse();
 
-            // 創建可修改的請求包裝器
-            ModifiableHttpServletRequest modifiableRequest = new ModifiableHttpServletRequest(theServletRequest);
-
-            byte[] requestBody = modifiableRequest.getBody();
-            if (requestBody == null || requestBody.length == 0) {
+            if (request.getBodyLength() == 0) {
                 logger.info("Request body is empty, do nothing");
-                return;
+                return true;
             }
 
-            // 解析原始請求
-            IParser parser = theRequestDetails.getFhirContext().newJsonParser();
-            Parameters requestParams = (Parameters) parser.parseResource(new ByteArrayInputStream(requestBody));
+            // 以 token 掃描原始請求, 不建立完整的 resource model (同一請求的 handler 共用掃描結果)
+            ParametersScan requestParams = request.getParametersScan();
+            if (requestParams == null) {
+                return true;
+            }
+            if (answerBatch(theRequestDetails, theServletResponse, requestParams)) {
+                return false;
+            }
+            if (answerFromCache(theRequestDetails, theServletResponse, requestParams)) {
+                return false;
+            }
 
-            IFhirPath fhirPath = theRequestDetails.getFhirContext().newFhirPath();
-            Optional<ValueSet> userValueSet = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='valueSet').resource", ValueSet.class);
-            Optional<UriType> userUrl = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='url').value", UriType.class);
-            Optional<Coding> userCoding = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='coding').value", Coding.class);
-            Optional<CodeType> userCode = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='code').value", CodeType.class);
+            ParametersScan.Parameter userValueSet = requestParams.getFirst("valueSet");
+            ParametersScan.Parameter userUrl = requestParams.getFirst("url");
+            ParametersScan.Parameter userCoding = requestParams.getFirst("coding");
+            ParametersScan.Parameter userCode = requestParams.getFirst("code");
+
+            boolean hasValueSet = userValueSet != null && userValueSet.isResource() && "ValueSet".equals(userValueSet.getResourceType());
+            boolean hasUrl = userUrl != null && userUrl.hasValue();
+            boolean hasCoding = userCoding != null && userCoding.hasValue();
+            boolean hasCode = userCode != null && userCode.hasValue();
+
+            // 常見 code system 的 code 直接在此驗證, 通過時不再經過 JPA 的 $validate-code
+            String system = hasCoding ? userCoding.getSystem() : getValue(requestParams.getFirst("system"));
+            String code = hasCoding ? userCoding.getCode() : getValue(userCode);
+            String valueSetSystem = null;
+            if (hasUrl) {
+                valueSetSystem = commonCodeValidator.getCodeSystemForValueSet(stripVersion(userUrl.getValue()));
+            } else if (hasValueSet && !userValueSet.hasComposeExclude()) {
+                valueSetSystem = userValueSet.getUnrestrictedComposeSystems().stream()
+                        .filter(s -> system == null ? commonCodeValidator.isSupportedCodeSystem(s) : s.equals(system))
+                        .findFirst()
+                        .orElse(null);
+            }
+            if (valueSetSystem != null && (system == null || system.equals(valueSetSystem)) &&
+                    answerCommonCode(theRequestDetails, theServletResponse, valueSetSystem, code)) {
+                return false;
+            }
 
+            // inline ValueSet 以編譯後的 compose 索引判斷, 可確定結果時直接回應
+            if (hasValueSet && !hasUrl) {
+                String version = hasCoding ? userCoding.getVersion() : getValue(requestParams.getFirst("systemVersion"));
+                String display = hasCoding ? userCoding.getDisplay() : getValue(requestParams.getFirst("display"));
+                InlineValueSetIndex.Membership membership = inlineValueSetIndex.lookup(userValueSet, system, version, code, display,
+                        serverTerminology.get(theRequestDetails));
+                // 含常見 code system 的 ValueSet 在 onOutgoingResponse 另有判斷, 不直接回應 false
+                if (membership != null && (membership.member() || !isCommonCodeSystemInCompose(userValueSet))) {
+                    logger.info("Code {}|{} resolved by inline ValueSet index", membership.system(), code);
+                    String message = membership.member() ? null :
+                            String.format("The provided code '%s#%s' was not found in the value set", membership.system(), code);
+                    writeValidateCodeResult(theRequestDetails, theServletResponse, membership.member(), membership.system(), code, membership.display(), message);
+                    InterceptorMetrics.recordValidateCodeAnswer(InterceptorMetrics.ValidateCodePath.INLINE_INDEX);
+                    return false;
+                }
+            }
 
-            if (userValueSet.isPresent() && userUrl.isEmpty() && (userCoding.isPresent() || userCode.isPresent())) {
+            if (hasValueSet && !hasUrl && (hasCoding || hasCode)) {
                 logger.info("Missing url in request, try to append it automatically");
-                Parameters newParams = new Parameters();
-                userCoding.ifPresent(coding -> newParams.addParameter(new Parameters.ParametersParameterComponent().setName("coding").setValue(coding)));
-                userCode.ifPresent(code -> newParams.addParameter(new Parameters.ParametersParameterComponent().setName("code").setValue(code)));
+                ParametersJsonWriter newParams = new ParametersJsonWriter();
+                if (hasCoding) {
+                    newParams.addParameter(userCoding);
+                }
+                if (hasCode) {
+                    newParams.addParameter(userCode);
+                }
 
-                String url = userValueSet.get().getUrl();
+                String url = userValueSet.getResourceUrl();
                 if (url == null) {
                     url = "nope";
                 }
                 url = url.replaceAll("--\\d+$", "");
-                newParams.addParameter("url", new UriType(url));
+                newParams.addParameter("url", "valueUri", url);
 
                 if (!url.startsWith("urn:uuid") &&
                     !url.startsWith("urn:oid") &&
-                    !url.equals(CommonCodeSystemsTerminologyService.LANGUAGES_VALUESET_URL) &&
-                    !url.equals(CommonCodeSystemsTerminologyService.MIMETYPES_VALUESET_URL) &&
-                    !url.equals(CommonCodeSystemsTerminologyService.CURRENCIES_VALUESET_URL) &&
-                    !url.equals(CommonCodeSystemsTerminologyService.UCUM_VALUESET_URL) &&
-                    !url.equals(CommonCodeSystemsTerminologyService.ALL_LANGUAGES_VALUESET_URL) &&
-                    !url.equals(CommonCodeSystemsTerminologyService.USPS_VALUESET_URL) &&
-                    !isCommonCodeSystemInCompose(theRequestDetails.getFhirContext(), requestParams)
+                    !CommonCodeValidator.VALUE_SET_URLS.contains(url) &&
+                    !isCommonCodeSystemInCompose(userValueSet)
                 ) {
                     // do nothing
                 } else {
-                    newParams.addParameter(new Parameters.ParametersParameterComponent().setName("valueSet").setResource(userValueSet.get()));
+                    newParams.addParameter(userValueSet);
                 }
 
-                // 將修改後的參數轉換回 JSON
-                String modifiedJson = parser.encodeResourceToString(newParams);
-                modifiableRequest.setBody(modifiedJson.getBytes());
-
-                theRequestDetails.setServletRequest(modifiableRequest);
-            } else {
-                theRequestDetails.setServletRequest(modifiableRequest);
+                // 將修改後的參數寫回 request body
+                request.setBody(newParams.toByteArray());
             }
         }
+        return true;
     }
 
-    private static boolean isCommonCodeSystemInCompose(FhirContext ctx, Parameters theRequestParams) {
-        String whereCommonCode = String.format("Parameters.parameter.where(name='valueSet').resource.compose.include.where(system='%s' or system='%s' or system='%s' or system='%s' or system='%s')",
-            CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL,
-            CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL,
-            CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL,
-            CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL,
-            CommonCodeSystemsTerminologyService.USPS_CODESYSTEM_URL
-        );
-        Optional<ValueSet.ConceptSetComponent> systemUrl = ctx.newFhirPath().evaluateFirst(theRequestParams, whereCommonCode, ValueSet.ConceptSetComponent.class);
-
-        return systemUrl.isPresent();
+    static boolean isCommonCodeSystemInCompose(ParametersScan.Parameter theValueSet) {
+        for (String system : theValueSet.getComposeSystems()) {
+            if (CommonCodeValidator.CODE_SYSTEM_URLS.contains(system)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private static void codeSystemValidateCodePreProcess(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest) throws IOException {
-        String contentType = theServletRequest.getContentType();
-        if (contentType.contains("application/json") || contentType.contains("application/fhir+json")) {
+    private boolean codeSystemValidateCodePreProcess(OperationRequest request) throws IOException {
+        if (request.isJson()) {
             logger.info("Doing custom code system $validate-code pre-process");
+            ServletRequestDetails theRequestDetails = request.getRequestDetails();
+            HttpServletResponse theServletResponse = request.getServletResponse();
 
-            // 創建可修改的請求包裝器
-            ModifiableHttpServletRequest modifiableRequest = new ModifiableHttpServletRequest(theServletRequest);
-
-            byte[] requestBody = modifiableRequest.getBody();
-            if (requestBody == null || requestBody.length == 0) {
+            if (request.getBodyLength() == 0) {
                 logger.info("Request body is empty, do nothing");
-                return;
+                return true;
             }
 
-            // 解析原始請求
-            IParser parser = theRequestDetails.getFhirContext().newJsonParser();
-            Parameters requestParams = (Parameters) parser.parseResource(new ByteArrayInputStream(requestBody));
+            // 以 token 掃描原始請求, 不建立完整的 resource model (同一請求的 handler 共用掃描結果)
+            ParametersScan requestParams = request.getParametersScan();
+            if (requestParams == null) {
+                return true;
+            }
+            if (answerBatch(theRequestDetails, theServletResponse, requestParams)) {
+                return false;
+            }
+            if (answerFromCache(theRequestDetails, theServletResponse, requestParams)) {
+                return false;
+            }
 
-            IFhirPath fhirPath = theRequestDetails.getFhirContext().newFhirPath();
+            ParametersScan.Parameter userCoding = requestParams.getFirst("coding");
+            ParametersScan.Parameter userUrl = requestParams.getFirst("url");
 
-            Optional<Coding> userCoding = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='coding').value", Coding.class);
-            Optional<UriType> userUrl = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='url').value", UriType.class);
+            // 常見 code system 的 code 直接在此驗證, 通過時不再經過 JPA 的 $validate-code
+            boolean hasCoding = userCoding != null && userCoding.hasValue();
+            String system = userUrl != null && userUrl.hasValue() ? stripVersion(userUrl.getValue()) : hasCoding ? userCoding.getSystem() : null;
+            String code = hasCoding ? userCoding.getCode() : getValue(requestParams.getFirst("code"));
+            if (commonCodeValidator.isSupportedCodeSystem(system) &&
+                    answerCommonCode(theRequestDetails, theServletResponse, system, code)) {
+                return false;
+            }
 
-            if (userCoding.isPresent() && userUrl.isEmpty()) {
+            if (userCoding != null && userCoding.hasValue() && (userUrl == null || !userUrl.hasValue())) {
+                String url = userCoding.getSystem();
+                if (url == null) {
+                    logger.info("Coding has no system, cannot append url");
+                    return true;
+                }
                 logger.info("Missing url in request, try to append it automatically");
 
-                String url = userCoding.get().getSystem();
-
                 url = url.replaceAll("--\\d+$", "");
-                requestParams.addParameter("url", new UriType(url));
-
-                // 將修改後的參數轉換回 JSON
-                String modifiedJson = parser.encodeResourceToString(requestParams);
-                modifiableRequest.setBody(modifiedJson.getBytes());
 
-                theRequestDetails.setServletRequest(modifiableRequest);
-            } else {
-                theRequestDetails.setServletRequest(modifiableRequest);
+                // 將修改後的參數寫回 request body
+                request.setBody(requestParams.withParameter("url", "valueUri", url));
             }
         }
+        return true;
+    }
+
+    /**
+     * Answers a request carrying more than one {@code coding} or {@code codeableConcept} with one result per entry.
+     */
+    private boolean answerBatch(ServletRequestDetails theRequestDetails, HttpServletResponse theServletResponse, ParametersScan requestParams) throws IOException {
+        if (batchCodeValidator == null || !BatchCodeValidator.isBatch(requestParams)) {
+            return false;
+        }
+        IValidationSupport terminologySupport = serverTerminology.get(theRequestDetails);
+        if (terminologySupport == null) {
+            // 無法取得伺服器的 terminology 時拒絕批次, 避免以不同的 terminology 回答
+            throw new NotImplementedOperationException("$validate-code batches need the server's terminology service, which is not available");
+        }
+        Parameters results = batchCodeValidator.validate(theRequestDetails.getFhirContext(), terminologySupport, theRequestDetails.getResourceName(), requestParams);
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, results, HttpServletResponse.SC_OK);
+        InterceptorMetrics.recordValidateCodeAnswer(InterceptorMetrics.ValidateCodePath.BATCH);
+        return true;
+    }
+
+    /**
+     * Writes the cached response for the request if there is one. Otherwise remembers the key and the cache
+     * generation, so the response produced by the server is cached in {@link #onOutgoingResponse} unless the
+     * cache was cleared in between.
+     */
+    private boolean answerFromCache(ServletRequestDetails theRequestDetails, HttpServletResponse theServletResponse, ParametersScan requestParams) throws IOException {
+        TerminologyResultCache.Key key = TerminologyResultCache.createKey(theRequestDetails.getResourceName(), requestParams);
+        if (key == null) {
+            return false;
+        }
+        long generation = terminologyResultCache.getGeneration();
+        Parameters cached = terminologyResultCache.get(key);
+        if (cached == null) {
+            theRequestDetails.getUserData().put(CACHE_KEY_USER_DATA, new PendingCacheEntry(key, generation));
+            return false;
+        }
+
+        logger.info("Returning cached $validate-code result for {}|{}", key.system(), key.code());
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, cached, HttpServletResponse.SC_OK);
+        InterceptorMetrics.recordValidateCodeAnswer(InterceptorMetrics.ValidateCodePath.CACHE);
+        return true;
+    }
+
+    /**
+     * Writes a successful $validate-code response if the code is valid in the common code system.
+     * Invalid codes are left to the regular $validate-code so the server's own terminology gets the final say.
+     */
+    private boolean answerCommonCode(ServletRequestDetails theRequestDetails, HttpServletResponse theServletResponse, String system, String code) throws IOException {
+        IValidationSupport.CodeValidationResult result = commonCodeValidator.validateCode(system, code);
+        if (result == null || !result.isOk()) {
+            return false;
+        }
+
+        logger.info("Code {}|{} validated by common code system validator", system, code);
+        writeValidateCodeResult(theRequestDetails, theServletResponse, true, system, code, result.getDisplay(), null);
+        InterceptorMetrics.recordValidateCodeAnswer(InterceptorMetrics.ValidateCodePath.COMMON_CODE);
+        return true;
+    }
+
+    private static void writeValidateCodeResult(ServletRequestDetails theRequestDetails,
+                                                HttpServletResponse theServletResponse,
+                                                boolean result,
+                                                String system,
+                                                String code,
+                                                String display,
+                                                String message) throws IOException {
+        Parameters response = createValidateCodeResult(result, system, code, display, message);
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, response, HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Builds the {@code Parameters} a {@code $validate-code} answers with.
+     */
+    static Parameters createValidateCodeResult(boolean result, String system, String code, String display, String message) {
+        Parameters response = new Parameters();
+        response.addParameter().setName("result").setValue(new BooleanType(result));
+        if (message != null) {
+            response.addParameter().setName("message").setValue(new StringType(message));
+        }
+        if (code != null) {
+            response.addParameter().setName("code").setValue(new CodeType(code));
+        }
+        if (system != null) {
+            response.addParameter().setName("system").setValue(new UriType(system));
+        }
+        if (display != null) {
+            response.addParameter().setName("display").setValue(new StringType(display));
+        }
+        return response;
+    }
+
+    private static String getValue(ParametersScan.Parameter theParameter) {
+        return theParameter != null ? theParameter.getValue() : null;
+    }
+
+    static String stripVersion(String theCanonical) {
+        if (theCanonical == null) {
+            return null;
+        }
+        int bar = theCanonical.indexOf('|');
+        return bar >= 0 ? theCanonical.substring(0, bar) : theCanonical;
     }
 
     @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
@@ -175,66 +357,111 @@ public class ValidateCodeOpCustomizer {
         String incomingResourceName = theRequestDetails.getResourceName();
         String incomingOperation = theRequestDetails.getOperation();
         if (incomingResourceName == null || incomingOperation == null) return;
+        long start = System.nanoTime();
 
-        if (incomingResourceName.equals("ValueSet") && incomingOperation.equals("$validate-code") && theRequestDetails.getRequestType() == RequestTypeEnum.POST) {
-            FhirContext ctx = FhirContext.forR4();
-            IParser parser = ctx.newJsonParser();
-            parser.setPrettyPrint(true);
-
-            IFhirPath fhirPath = ctx.newFhirPath();
-            Optional<Parameters.ParametersParameterComponent> result = fhirPath.evaluateFirst(theResource, "Parameters.parameter.where(name='result')", Parameters.ParametersParameterComponent.class);
+        boolean validateCodePost = incomingOperation.equals("$validate-code") && theRequestDetails.getRequestType() == RequestTypeEnum.POST;
+        // 走到這裡的 $validate-code 由 server 的 terminology (JPA) 回應
+        InterceptorMetrics.ValidateCodePath answeredBy = InterceptorMetrics.ValidateCodePath.JPA;
+        if (validateCodePost && incomingResourceName.equals("ValueSet")) {
+            Optional<Parameters.ParametersParameterComponent> result = FhirPathExpressions.evaluateFirst(theResource, FhirPathExpressions.PARAMETER_RESULT, Parameters.ParametersParameterComponent.class);
             if (result.isPresent()) {
                 Parameters.ParametersParameterComponent resultParam = result.get();
                 boolean resultValue = Boolean.parseBoolean(String.valueOf(resultParam.getValue()));
 
                 if (!resultValue) {
                     Parameters requestParams = (Parameters) theRequestDetails.getResource();
-                    Optional<Parameters.ParametersParameterComponent> userValueSetParam = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='valueSet')", Parameters.ParametersParameterComponent.class);
+                    Optional<Parameters.ParametersParameterComponent> userValueSetParam = FhirPathExpressions.evaluateFirst(requestParams, FhirPathExpressions.PARAMETER_VALUE_SET, Parameters.ParametersParameterComponent.class);
                     if (userValueSetParam.isPresent()) {
-                        Optional<CodeType> theCode = fhirPath.evaluateFirst(requestParams, "Parameters.parameter.where(name='code').value", CodeType.class);
-                        boolean validateSingleCodeResult = doValidateSingleCode(theRequestDetails.getFhirContext(), theCode, (ValueSet) userValueSetParam.get().getResource());
+                        Optional<CodeType> theCode = FhirPathExpressions.evaluateFirst(requestParams, FhirPathExpressions.PARAMETER_CODE_VALUE, CodeType.class);
+                        boolean validateSingleCodeResult = doValidateSingleCode(theCode, (ValueSet) userValueSetParam.get().getResource());
                         if (validateSingleCodeResult) {
                             Parameters goodParams = new Parameters();
                             goodParams.addParameter().setName("result").setValue(new BooleanType(true));
                             goodParams.addParameter().setName("message").setValue(new StringType("Code validated by common code system terminology service"));
                             theResponseDetails.setResponseResource(goodParams);
+                            answeredBy = InterceptorMetrics.ValidateCodePath.COMMON_CODE_FALLBACK;
                         }
                     }
                 }
             }
         }
+
+        // 將最終回應存入快取
+        Object cacheKey = theRequestDetails.getUserData().get(CACHE_KEY_USER_DATA);
+        if (cacheKey instanceof PendingCacheEntry pending &&
+                theResponseDetails.getResponseCode() == HttpServletResponse.SC_OK &&
+                theResponseDetails.getResponseResource() instanceof Parameters response) {
+            terminologyResultCache.put(pending.key(), response, pending.generation());
+        }
+
+        if (validateCodePost) {
+            InterceptorMetrics.recordValidateCodeAnswer(answeredBy);
+        }
+        InterceptorMetrics.recordHook(OUTGOING_RESPONSE_HOOK, incomingOperation, start);
     }
 
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void onResourceCreated(IBaseResource theResource, RequestDetails theRequestDetails) {
+        invalidateTerminologyCache(theResource, theRequestDetails);
+    }
 
-    private boolean doValidateSingleCode(FhirContext ctx, Optional<CodeType> code, ValueSet valueSet) {
-        IFhirPath fhirPath = ctx.newFhirPath();
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void onResourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource, RequestDetails theRequestDetails) {
+        invalidateTerminologyCache(theNewResource, theRequestDetails);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void onResourceDeleted(IBaseResource theResource, RequestDetails theRequestDetails) {
+        invalidateTerminologyCache(theResource, theRequestDetails);
+    }
+
+    /**
+     * Clears the cache again once the request that wrote a CodeSystem or ValueSet has committed, since
+     * {@code $validate-code} requests between the pre-commit clear and the commit still see the old terminology.
+     */
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void onProcessingCompleted(RequestDetails theRequestDetails) {
+        if (theRequestDetails != null && theRequestDetails.getUserData().remove(TERMINOLOGY_CHANGED_USER_DATA) != null) {
+            logger.info("Terminology change committed, clearing $validate-code result cache");
+            terminologyResultCache.clear();
+        }
+    }
+
+    private void invalidateTerminologyCache(IBaseResource theResource, RequestDetails theRequestDetails) {
+        String resourceType = theResource.fhirType();
+        if ("CodeSystem".equals(resourceType) || "ValueSet".equals(resourceType)) {
+            logger.info("{} changed, clearing $validate-code result cache", resourceType);
+            terminologyResultCache.clear();
+            // 寫入在請求內時, 請求結束 (已 commit) 後再清除一次
+            if (theRequestDetails != null) {
+                theRequestDetails.getUserData().put(TERMINOLOGY_CHANGED_USER_DATA, Boolean.TRUE);
+            }
+        }
+    }
+
+
+    private boolean doValidateSingleCode(Optional<CodeType> code, ValueSet valueSet) {
         // 正常進到這階段的 code 幾乎都是 common code
-        String whereCommonCode = String.format("ValueSet.compose.include.where(system='%s' or system='%s' or system='%s' or system='%s' or system='%s').system",
-                CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL,
-                CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL,
-                CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL,
-                CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL,
-                CommonCodeSystemsTerminologyService.USPS_CODESYSTEM_URL
-        );
-        Optional<UriType> theSystem = fhirPath.evaluateFirst(valueSet, whereCommonCode, UriType.class);
+        Optional<UriType> theSystem = FhirPathExpressions.evaluateFirst(valueSet, FhirPathExpressions.VALUE_SET_COMMON_CODE_SYSTEM, UriType.class);
 
 
         if (!code.isPresent() || !theSystem.isPresent()) {
             return false;
         }
 
-        CommonCodeSystemsTerminologyService service = new CommonCodeSystemsTerminologyService(ctx);
-        IValidationSupport.CodeValidationResult r = service.validateCode(
-                new ValidationSupportContext(ctx.getValidationSupport()),
-                new ConceptValidationOptions().setInferSystem(true),
+        IValidationSupport.CodeValidationResult r = commonCodeValidator.validateCode(
                 theSystem.get().getValue(),
-                code.get().getCode(),
-                null,
-                null
+                code.get().getCode()
         );
         if (r!=null) {
             return r.isOk();
         }
         return false;
     }
+
+    /**
+     * A cache key remembered until the server's response is known, with the cache generation read before the lookup.
+     */
+    private record PendingCacheEntry(TerminologyResultCache.Key key, long generation) {
+    }
 }
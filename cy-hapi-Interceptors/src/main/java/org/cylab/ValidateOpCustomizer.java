@@ -1,81 +1,477 @@
 package org.cylab;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.interceptor.api.Hook;
-import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import ca.uhn.fhir.util.OperationOutcomeUtil;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+public class ValidateOpCustomizer implements OperationRouter.RouteProvider {
+    private static final Logger logger = LoggerFactory.getLogger(ValidateOpCustomizer.class);
+    private static final long ASYNC_TIMEOUT_MARGIN_MS = 5_000;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String CLIENT_ID_HEADER = EnvironmentSettings.getString("ADMISSION_CLIENT_HEADER", null);
+    private static final boolean CACHE_ADMIN_LOCAL_ONLY = EnvironmentSettings.getBoolean("VALIDATE_CACHE_ADMIN_LOCAL_ONLY", true);
+
+    private static final String CACHE_CLEAR_OPERATION = "$validate-cache-clear";
+    private static final String CACHE_STATS_OPERATION = "$validate-cache-stats";
+    private static final String JOB_STATUS_OPERATION = "$validate-job";
+    private static final String JOB_ID_PARAMETER = "id";
+    private static final String JOB_POLL_RETRY_AFTER_SECONDS = "1";
+
+    private final ValidationBackend validationBackend;
+    private final ValidationResultCache validationResultCache;
+    private final SingleFlight<String, ValidationResponseResult> inFlightValidations = new SingleFlight<>();
+    private final Executor asyncExecutor;
+    private final BundleFanOutValidator bundleFanOutValidator;
+    private final AdmissionController admissionController;
+    private final ValidationJobStore validationJobStore;
+
+    public ValidateOpCustomizer() {
+        this(new ValidatorCaller());
+    }
+
+    public ValidateOpCustomizer(ValidatorCaller validatorCaller) {
+        this(validatorCaller, new ValidationResultCache());
+    }
+
+    public ValidateOpCustomizer(ValidatorCaller validatorCaller, ValidationResultCache validationResultCache) {
+        this(validatorCaller, validationResultCache, createAsyncExecutor());
+    }
+
+    public ValidateOpCustomizer(ValidatorCaller validatorCaller, ValidationResultCache validationResultCache, Executor asyncExecutor) {
+        this(createValidationBackend(validatorCaller), validationResultCache, asyncExecutor);
+    }
+
+    public ValidateOpCustomizer(ValidationBackend validationBackend, ValidationResultCache validationResultCache, Executor asyncExecutor) {
+        this(validationBackend, validationResultCache, asyncExecutor, BundleFanOutValidator.fromEnvironment(validationBackend));
+    }
+
+    public ValidateOpCustomizer(ValidationBackend validationBackend,
+                                ValidationResultCache validationResultCache,
+                                Executor asyncExecutor,
+                                BundleFanOutValidator bundleFanOutValidator) {
+        this(validationBackend, validationResultCache, asyncExecutor, bundleFanOutValidator, AdmissionController.fromEnvironment());
+    }
+
+    public ValidateOpCustomizer(ValidationBackend validationBackend,
+                                ValidationResultCache validationResultCache,
+                                Executor asyncExecutor,
+                                BundleFanOutValidator bundleFanOutValidator,
+                                AdmissionController admissionController) {
+        this(validationBackend, validationResultCache, asyncExecutor, bundleFanOutValidator, admissionController,
+                ValidationJobStore.fromEnvironment());
+    }
 
-public class ValidateOpCustomizer {
+    /**
+     * @param asyncExecutor         executor finishing validations off the container thread, or {@code null} to validate
+     *                              synchronously on the request thread
+     * @param bundleFanOutValidator validator splitting large Bundles into concurrently validated entries,
+     *                              or {@code null} to send Bundles to the validator as a whole
+     * @param admissionController   limiter for concurrent validator calls, or {@code null} for no limit besides
+     *                              {@code INFERNO_MAX_IN_FLIGHT}
+     * @param validationJobStore    background jobs for {@code Prefer: respond-async} requests, or {@code null} to
+     *                              answer such requests synchronously
+     */
+    public ValidateOpCustomizer(ValidationBackend validationBackend,
+                                ValidationResultCache validationResultCache,
+                                Executor asyncExecutor,
+                                BundleFanOutValidator bundleFanOutValidator,
+                                AdmissionController admissionController,
+                                ValidationJobStore validationJobStore) {
+        this.validationBackend = validationBackend;
+        this.validationResultCache = validationResultCache;
+        this.asyncExecutor = asyncExecutor;
+        this.bundleFanOutValidator = bundleFanOutValidator;
+        this.admissionController = admissionController;
+        this.validationJobStore = validationJobStore;
+    }
 
-    private static final String JSON_CONTENT_TYPE = "application/fhir+json";
-    private static final String XML_CONTENT_TYPE = "application/fhir+xml";
+    /**
+     * Validates in process when {@code VALIDATOR_MODE=embedded}, otherwise through the external validator at
+     * {@code INFERNO_URL}.
+     */
+    private static ValidationBackend createValidationBackend(ValidatorCaller validatorCaller) {
+        if ("embedded".equalsIgnoreCase(EnvironmentSettings.getString("VALIDATOR_MODE", "http"))) {
+            return ValidationEnginePool.fromEnvironment();
+        }
+        return ValidatorEndpointPool.fromEnvironment(validatorCaller, getInfernoUrl());
+    }
 
-    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLER_SELECTED)
-    public boolean onIncomingRequest(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
-        if (!isValidateOperation(theRequestDetails)) {
-            return  true;
+    private static Executor createAsyncExecutor() {
+        if (!EnvironmentSettings.getBoolean("VALIDATE_ASYNC", false)) {
+            return null;
         }
+        int threads = Math.max(1, EnvironmentSettings.getInt("VALIDATE_ASYNC_THREADS", Runtime.getRuntime().availableProcessors()));
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("validate-async-%d")
+                .setDaemon(true)
+                .build());
+    }
 
-        String contentType = theServletRequest.getContentType();
-        boolean isJson = contentType.contains("json");
-        boolean isXml = contentType.contains("xml");
+    @Override
+    public void registerRoutes(OperationRouter router) {
+        router.route(null, CACHE_STATS_OPERATION, RequestTypeEnum.GET, this::processCacheAdminRequest);
+        router.route(null, CACHE_CLEAR_OPERATION, RequestTypeEnum.POST, this::processCacheAdminRequest);
+        router.route(null, CACHE_CLEAR_OPERATION, RequestTypeEnum.DELETE, this::processCacheAdminRequest);
+        if (validationJobStore != null) {
+            router.route(null, JOB_STATUS_OPERATION, RequestTypeEnum.GET, this::processJobStatusRequest);
+            router.route(null, JOB_STATUS_OPERATION, RequestTypeEnum.DELETE, this::processJobStatusRequest);
+        }
+        router.route(OperationRouter.ANY_RESOURCE, "$validate", RequestTypeEnum.POST, this::processValidationRequest);
+    }
 
-        if (!isJson && !isXml) {
-            return true;
+    /**
+     * Answers a poll of a {@code Prefer: respond-async} validation: {@code 202} while it runs, then a
+     * {@code batch-response} Bundle holding the OperationOutcome and the status the request would have received.
+     * {@code DELETE} forgets the job.
+     */
+    private boolean processJobStatusRequest(OperationRequest request) throws IOException {
+        ServletRequestDetails theRequestDetails = request.getRequestDetails();
+        HttpServletResponse theServletResponse = request.getServletResponse();
+
+        String[] ids = theRequestDetails.getParameters().get(JOB_ID_PARAMETER);
+        String jobId = ids != null && ids.length > 0 ? ids[0] : null;
+        ValidationJobStore.Job job = validationJobStore.get(jobId);
+        if (job == null) {
+            OperationOutcome notFound = new OperationOutcome();
+            notFound.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.NOTFOUND)
+                    .setDiagnostics("Unknown or expired validation job: " + jobId);
+            ServletResponses.writeResource(theRequestDetails, theServletResponse, notFound, HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+
+        if (theRequestDetails.getRequestType() == RequestTypeEnum.DELETE) {
+            validationJobStore.remove(jobId);
+            theServletResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+            return false;
+        }
+
+        ValidationJobStore.Result result = job.getResult();
+        if (result == null) {
+            theServletResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+            theServletResponse.setHeader(Constants.HEADER_X_PROGRESS, "in-progress");
+            theServletResponse.setHeader(Constants.HEADER_RETRY_AFTER, JOB_POLL_RETRY_AFTER_SECONDS);
+            return false;
         }
 
-        return processValidationRequest(theRequestDetails, theServletRequest, theServletResponse, isJson);
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.BATCHRESPONSE);
+        Bundle.BundleEntryComponent entry = bundle.addEntry();
+        entry.setResource(result.outcome());
+        entry.getResponse().setStatus(result.status() + " " + getReasonPhrase(result.status()));
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, bundle, HttpServletResponse.SC_OK);
+        return false;
     }
 
-    private boolean isValidateOperation(ServletRequestDetails theRequestDetails) {
-        return theRequestDetails != null &&
-                theRequestDetails.getOperation() != null &&
-                theRequestDetails.getOperation().equals("$validate") &&
-                theRequestDetails.getRequestType() == RequestTypeEnum.POST;
+    private static String getReasonPhrase(int status) {
+        return switch (status) {
+            case HttpServletResponse.SC_OK -> "OK";
+            case 422 -> "Unprocessable Entity";
+            case SC_TOO_MANY_REQUESTS -> "Too Many Requests";
+            default -> "Internal Server Error";
+        };
     }
 
-    private boolean processValidationRequest(ServletRequestDetails theRequestDetails,
-                                             HttpServletRequest theServletRequest,
-                                             HttpServletResponse theServletResponse,
-                                             boolean isJson) throws IOException {
+    private boolean processCacheAdminRequest(OperationRequest request) throws IOException {
+        ServletRequestDetails theRequestDetails = request.getRequestDetails();
+        HttpServletResponse theServletResponse = request.getServletResponse();
+        if (CACHE_ADMIN_LOCAL_ONLY && !InterceptorMetrics.isLoopback(request.getServletRequest().getRemoteAddr())) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                    .setDiagnostics("The validation cache is only available to local clients");
+            ServletResponses.writeResource(theRequestDetails, theServletResponse, outcome, HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        if (CACHE_CLEAR_OPERATION.equals(theRequestDetails.getOperation())) {
+            validationResultCache.clear();
+        }
 
-        ModifiableHttpServletRequest modifiableRequest = new ModifiableHttpServletRequest(theServletRequest);
-        byte[] requestBody = modifiableRequest.getBody();
+        CacheStats stats = validationResultCache.stats();
+        Parameters parameters = new Parameters();
+        parameters.addParameter("size", new IntegerType(Math.toIntExact(validationResultCache.size())));
+        parameters.addParameter("hitCount", new DecimalType(stats.hitCount()));
+        parameters.addParameter("missCount", new DecimalType(stats.missCount()));
+        parameters.addParameter("evictionCount", new DecimalType(stats.evictionCount()));
 
-        if (requestBody == null || requestBody.length == 0) {
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, parameters, HttpServletResponse.SC_OK);
+        return false;
+    }
+
+    private boolean processValidationRequest(OperationRequest request) throws IOException {
+        boolean isJson = request.isJson();
+        if (!isJson && !request.isXml()) {
+            return true;
+        }
+
+        ServletRequestDetails theRequestDetails = request.getRequestDetails();
+        HttpServletRequest theServletRequest = request.getServletRequest();
+        HttpServletResponse theServletResponse = request.getServletResponse();
+        if (request.getBodyLength() == 0) {
             return true;
         }
 
-        // Parse request and convert to JSON if needed
-        String requestResourceJson = new String(requestBody, StandardCharsets.UTF_8);
+        // 從串流計算 key, 快取命中時不必把寫入暫存檔的 body 讀進記憶體
+        String cacheKey;
+        try (InputStream body = request.openBody()) {
+            cacheKey = validationResultCache.createKey(theRequestDetails, body, isJson);
+        }
+        OperationOutcome cachedOutcome = validationResultCache.get(cacheKey);
+        if (cachedOutcome != null) {
+            sendResponse(theRequestDetails, theServletResponse, cachedOutcome, HttpServletResponse.SC_OK, isJson);
+            return false;
+        }
+
+        String clientId = getClientId(theServletRequest);
+        if (validationJobStore != null && prefersRespondAsync(theServletRequest)) {
+            submitValidationJob(theRequestDetails, theServletResponse, cacheKey, clientId, request.getBody(), isJson);
+            return false;
+        }
+        // 先佔用 client 的配額再加入相同請求的共用呼叫, 共用呼叫的請求同樣計入配額
+        AdmissionController.ClientPermit clientPermit = acquireClientPermit(clientId);
+        if (clientPermit == null) {
+            handleThrottled(theRequestDetails, theServletResponse, quotaExceededResult(), isJson);
+            return false;
+        }
+        if (asyncExecutor != null && theServletRequest.isAsyncSupported()) {
+            try {
+                // 非同步處理可能在 request 結束後才執行, 需持有 body 的副本
+                processValidationRequestAsync(theRequestDetails, theServletRequest, cacheKey, clientPermit, request.getBody(), isJson);
+            } catch (RuntimeException e) {
+                clientPermit.release();
+                throw e;
+            }
+            return false;
+        }
+
+        // Validate using external service, sharing the call with identical requests already in flight
+        ValidationResponseResult response;
+        try {
+            Supplier<ValidationResponseResult> validation = validation(request, isJson);
+            response = inFlightValidations.execute(cacheKey, validation);
+        } finally {
+            clientPermit.release();
+        }
+        completeValidation(theRequestDetails, theServletResponse, cacheKey, response, isJson);
+        return false;
+    }
+
+    private static boolean prefersRespondAsync(HttpServletRequest theServletRequest) {
+        Enumeration<String> headers = theServletRequest.getHeaders(Constants.HEADER_PREFER);
+        while (headers != null && headers.hasMoreElements()) {
+            for (String preference : headers.nextElement().split(",")) {
+                if (Constants.HEADER_PREFER_RESPOND_ASYNC.equalsIgnoreCase(preference.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the validation as a background job and answers {@code 202 Accepted} with the job's status URL
+     * in {@code Content-Location}, following the FHIR asynchronous request pattern.
+     */
+    private void submitValidationJob(ServletRequestDetails theRequestDetails,
+                                     HttpServletResponse theServletResponse,
+                                     String cacheKey,
+                                     String clientId,
+                                     byte[] requestBody,
+                                     boolean isJson) throws IOException {
+        ValidationJobStore.Job job = validationJobStore.submit(() -> {
+            // 配額在 job 開始執行時才佔用, 排隊中的 job 不計入
+            AdmissionController.ClientPermit clientPermit = acquireClientPermit(clientId);
+            if (clientPermit == null) {
+                return toJobResult(theRequestDetails, cacheKey, quotaExceededResult());
+            }
+            try {
+                ValidationResponseResult response = inFlightValidations.execute(cacheKey,
+                        () -> validateResource(requestBody, isJson));
+                return toJobResult(theRequestDetails, cacheKey, response);
+            } finally {
+                clientPermit.release();
+            }
+        });
+        if (job == null) {
+            handleThrottled(theRequestDetails, theServletResponse,
+                    new ValidationResponseResult("Error: validation job queue is full", ValidationResponseResult.STATUS_REJECTED), isJson);
+            return;
+        }
+
+        String statusUrl = theRequestDetails.getFhirServerBase() + "/" + JOB_STATUS_OPERATION + "?" + JOB_ID_PARAMETER + "=" + job.getId();
+        logger.info("Queued validation job {}", job.getId());
+
+        OperationOutcome accepted = new OperationOutcome();
+        accepted.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics("Validation accepted, poll " + statusUrl + " for the result");
+
+        theServletResponse.setHeader(Constants.HEADER_CONTENT_LOCATION, statusUrl);
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, accepted, HttpServletResponse.SC_ACCEPTED, getEncoding(isJson));
+    }
+
+    /**
+     * Turns a validator result into the status and outcome a synchronous request would have been answered with.
+     */
+    private ValidationJobStore.Result toJobResult(ServletRequestDetails theRequestDetails,
+                                                  String cacheKey,
+                                                  ValidationResponseResult response) {
+        if (response.getStatus() == ValidationResponseResult.STATUS_REJECTED) {
+            return new ValidationJobStore.Result(SC_TOO_MANY_REQUESTS, createThrottledOutcome(response));
+        }
+        if (response.getStatus() != 200) {
+            return new ValidationJobStore.Result(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, createErrorOutcome(response.getBody()));
+        }
+        OperationOutcome outcome = processValidationResponse(theRequestDetails, response);
+        validationResultCache.put(cacheKey, outcome);
+        return new ValidationJobStore.Result(hasErrors(theRequestDetails.getFhirContext(), outcome) ? 422 : 200, outcome);
+    }
+
+    /**
+     * Releases the container thread while the validator works: the request is put in async mode and the
+     * response is written from {@link #asyncExecutor} once the validator answers.
+     */
+    private void processValidationRequestAsync(ServletRequestDetails theRequestDetails,
+                                               HttpServletRequest theServletRequest,
+                                               String cacheKey,
+                                               AdmissionController.ClientPermit clientPermit,
+                                               byte[] requestBody,
+                                               boolean isJson) {
+        AsyncContext asyncContext = theServletRequest.startAsync();
+        // 比 validator 的逾時多留一些時間, 讓逾時錯誤由 validator 呼叫端回報
+        asyncContext.setTimeout(validationBackend.getMaxCallDuration().toMillis() + ASYNC_TIMEOUT_MARGIN_MS);
+        AtomicBoolean completed = new AtomicBoolean();
+        HttpServletResponse asyncResponse = (HttpServletResponse) asyncContext.getResponse();
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (completed.compareAndSet(false, true)) {
+                    handleValidationError(theRequestDetails, asyncResponse,
+                            new ValidationResponseResult("Error: validation timed out", -1), isJson);
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // 連線已中斷, 不再寫出回應; 尚未寫出時由此結束 async context
+                if (completed.compareAndSet(false, true)) {
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        CompletableFuture<ValidationResponseResult> validation;
+        try {
+            validation = inFlightValidations.executeAsync(cacheKey, () -> validateResourceAsync(requestBody, isJson));
+        } catch (RuntimeException e) {
+            validation = CompletableFuture.failedFuture(e);
+        }
+        validation.whenCompleteAsync((response, error) -> {
+            clientPermit.release();
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    logger.error("Validation failed", cause);
+                    handleValidationError(theRequestDetails, asyncResponse,
+                            new ValidationResponseResult("Error: " + cause.getMessage(), ValidationResponseResult.STATUS_FAILED), isJson);
+                } else {
+                    completeValidation(theRequestDetails, asyncResponse, cacheKey, response, isJson);
+                }
+            } catch (Exception e) {
+                logger.error("Failed to write validation response", e);
+                writeErrorIfUncommitted(theRequestDetails, asyncResponse, e, isJson);
+            } finally {
+                asyncContext.complete();
+            }
+        }, asyncExecutor);
+    }
 
-        // Validate using external service
-        ValidationResponseResult response = validateResource(requestResourceJson);
+    /**
+     * Answers {@code 500} like the synchronous path does when writing the response failed before anything was sent.
+     */
+    private void writeErrorIfUncommitted(ServletRequestDetails theRequestDetails,
+                                         HttpServletResponse theServletResponse,
+                                         Exception exception,
+                                         boolean isJson) {
+        if (theServletResponse.isCommitted()) {
+            return;
+        }
+        try {
+            // 清除寫到一半的 header 與內容 (例如 Content-Encoding)
+            theServletResponse.reset();
+            handleValidationError(theRequestDetails, theServletResponse,
+                    new ValidationResponseResult("Error: " + exception.getMessage(), ValidationResponseResult.STATUS_FAILED), isJson);
+        } catch (Exception e) {
+            logger.error("Failed to write validation error response", e);
+        }
+    }
 
+    private void completeValidation(ServletRequestDetails theRequestDetails,
+                                    HttpServletResponse theServletResponse,
+                                    String cacheKey,
+                                    ValidationResponseResult response,
+                                    boolean isJson) throws IOException {
+        if (response.getStatus() == ValidationResponseResult.STATUS_REJECTED) {
+            handleThrottled(theRequestDetails, theServletResponse, response, isJson);
+            return;
+        }
         if (response.getStatus() != 200) {
             handleValidationError(theRequestDetails, theServletResponse, response, isJson);
-            return false;
+            return;
         }
 
         // Process successful validation
         OperationOutcome outcome = processValidationResponse(theRequestDetails, response);
+        validationResultCache.put(cacheKey, outcome);
 
         // Send response
         sendResponse(theRequestDetails, theServletResponse, outcome, response.getStatus(), isJson);
-        return false;
     }
 
 
@@ -83,7 +479,9 @@ public class ValidateOpCustomizer {
                                                        ValidationResponseResult response) {
 
         IParser parser = theRequestDetails.getFhirContext().newJsonParser();
-        OperationOutcome outcome = (OperationOutcome) parser.parseResource(response.getBody());
+        long start = System.nanoTime();
+        OperationOutcome outcome = parser.parseResource(OperationOutcome.class, response.getBodyStream());
+        InterceptorMetrics.recordPhase(InterceptorMetrics.Phase.PARSE, start);
 
         // Add custom validation message
         outcome.addIssue(
@@ -105,35 +503,109 @@ public class ValidateOpCustomizer {
                               int status,
                               boolean isJson) throws IOException {
 
-        if (hasErrors(requestDetails.getFhirContext(), outcome)) {
-            theServletResponse.setStatus(422);
-        } else {
-            theServletResponse.setStatus(status);
+        int responseStatus = hasErrors(requestDetails.getFhirContext(), outcome) ? 422 : status;
+        ServletResponses.writeResource(requestDetails, theServletResponse, outcome, responseStatus, getEncoding(isJson));
+    }
+
+    /**
+     * Returns the blocking validation call for the request. A body spilled to disk is streamed from its file unless
+     * the Bundle fan-out needs it in memory.
+     */
+    private Supplier<ValidationResponseResult> validation(OperationRequest request, boolean isJson) throws IOException {
+        Path bodyFile = request.getBodyFile();
+        if (bodyFile != null && (bundleFanOutValidator == null || !isJson)) {
+            return () -> validateAdmitted(() -> validationBackend.validate(bodyFile));
+        }
+        byte[] requestBody = request.getBody();
+        return () -> validateResource(requestBody, isJson);
+    }
+
+    /**
+     * Validates the resource, taking one admission permit per validator call: one for the whole resource, or one
+     * per entry when a Bundle is fanned out.
+     */
+    private ValidationResponseResult validateResource(byte[] requestBody, boolean isJson) {
+        CompletableFuture<ValidationResponseResult> bundleValidation = validateBundleEntries(requestBody, isJson);
+        if (bundleValidation != null) {
+            return bundleValidation.join();
+        }
+        return validateAdmitted(() -> validationBackend.validate(requestBody));
+    }
+
+    private CompletableFuture<ValidationResponseResult> validateResourceAsync(byte[] requestBody, boolean isJson) {
+        CompletableFuture<ValidationResponseResult> bundleValidation = validateBundleEntries(requestBody, isJson);
+        if (bundleValidation != null) {
+            return bundleValidation;
         }
+        return validateAdmittedAsync(() -> validationBackend.validateAsync(requestBody));
+    }
+
+    /**
+     * Runs the call once the admission controller grants a slot, blocking the request thread while queued.
+     */
+    private ValidationResponseResult validateAdmitted(Supplier<ValidationResponseResult> call) {
+        if (admissionController == null) {
+            return call.get();
+        }
+        AdmissionController.Permit permit = admissionController.acquire().join();
+        if (permit == null) {
+            return overloadedResult();
+        }
+        ValidationResponseResult result = null;
+        try {
+            result = call.get();
+            return result;
+        } finally {
+            permit.release(result);
+        }
+    }
 
-        IParser responseParser = getAppropriateParser(requestDetails, isJson);
-        responseParser.setPrettyPrint(true);
-        String outcomeJsonString = responseParser.encodeResourceToString(outcome);
+    private CompletableFuture<ValidationResponseResult> validateAdmittedAsync(Supplier<CompletableFuture<ValidationResponseResult>> call) {
+        if (admissionController == null) {
+            return call.get();
+        }
+        return admissionController.acquire().thenComposeAsync(permit -> {
+            if (permit == null) {
+                return CompletableFuture.completedFuture(overloadedResult());
+            }
+            CompletableFuture<ValidationResponseResult> result;
+            try {
+                result = call.get();
+            } catch (RuntimeException e) {
+                permit.release(null);
+                throw e;
+            }
+            return result.whenComplete((value, error) -> permit.release(value));
+        }, asyncExecutor);
+    }
 
-        theServletResponse.setHeader("Content-Type", isJson ? JSON_CONTENT_TYPE : XML_CONTENT_TYPE);
-        theServletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
-        theServletResponse.getWriter().write(outcomeJsonString);
-        theServletResponse.getWriter().flush();
+    /**
+     * Takes a slot of the client's quota for the duration of the request, or returns {@code null} if the client is
+     * over it. Without admission control every request is admitted.
+     */
+    private AdmissionController.ClientPermit acquireClientPermit(String clientId) {
+        return admissionController != null ? admissionController.acquireClient(clientId) : AdmissionController.ClientPermit.UNLIMITED;
     }
 
-    private String parseRequestToJson(ServletRequestDetails theRequestDetails, byte[] requestBody, boolean isJson) {
-        IParser parser = getAppropriateParser(theRequestDetails, isJson);
+    private static ValidationResponseResult quotaExceededResult() {
+        return new ValidationResponseResult("Error: client validation quota exceeded", ValidationResponseResult.STATUS_REJECTED);
+    }
 
-        IBaseResource requestResource = parser.parseResource(new ByteArrayInputStream(requestBody));
+    private static ValidationResponseResult overloadedResult() {
+        return new ValidationResponseResult("Error: validation capacity exceeded", ValidationResponseResult.STATUS_REJECTED);
+    }
 
-        return theRequestDetails.getFhirContext().newJsonParser()
-                .setPrettyPrint(true)
-                .encodeResourceToString(requestResource);
+    private static String getClientId(HttpServletRequest theServletRequest) {
+        String clientId = CLIENT_ID_HEADER != null ? theServletRequest.getHeader(CLIENT_ID_HEADER) : null;
+        return clientId != null ? clientId : theServletRequest.getRemoteAddr();
     }
 
-    private ValidationResponseResult validateResource(String requestResourceJson) {
-        ValidatorCaller validatorCaller = new ValidatorCaller();
-        return validatorCaller.sendJsonRequest(getInfernoUrl(), requestResourceJson);
+    private CompletableFuture<ValidationResponseResult> validateBundleEntries(byte[] requestBody, boolean isJson) {
+        if (bundleFanOutValidator == null || !isJson) {
+            return null;
+        }
+        // entry 在 fan-out 的執行緒上等待許可, 不佔用 request 執行緒
+        return bundleFanOutValidator.validate(requestBody, entry -> validateAdmitted(() -> validationBackend.validate(entry)));
     }
 
     private boolean hasErrors(FhirContext ctx, OperationOutcome outcome) {
@@ -149,13 +621,31 @@ public class ValidateOpCustomizer {
                                        boolean isJson) throws IOException {
 
         OperationOutcome errorOutcome = createErrorOutcome(response.getBody());
-        IParser parser = getAppropriateParser(theRequestDetails, isJson);
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, errorOutcome,
+                HttpServletResponse.SC_INTERNAL_SERVER_ERROR, getEncoding(isJson));
+    }
+
+    private void handleThrottled(ServletRequestDetails theRequestDetails,
+                                 HttpServletResponse theServletResponse,
+                                 ValidationResponseResult response,
+                                 boolean isJson) throws IOException {
 
-        theServletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-        theServletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
-        theServletResponse.setHeader("Content-Type", isJson ? JSON_CONTENT_TYPE : XML_CONTENT_TYPE);
-        theServletResponse.getWriter().write(parser.encodeResourceToString(errorOutcome));
-        theServletResponse.getWriter().flush();
+        OperationOutcome throttledOutcome = createThrottledOutcome(response);
+        long retryAfter = admissionController != null ? admissionController.getRetryAfterSeconds() : 1;
+
+        theServletResponse.setHeader(Constants.HEADER_RETRY_AFTER, Long.toString(retryAfter));
+        ServletResponses.writeResource(theRequestDetails, theServletResponse, throttledOutcome, SC_TOO_MANY_REQUESTS, getEncoding(isJson));
+    }
+
+    private OperationOutcome createThrottledOutcome(ValidationResponseResult response) {
+        OperationOutcome throttledOutcome = new OperationOutcome();
+        throttledOutcome.addIssue(
+                new OperationOutcome.OperationOutcomeIssueComponent()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.THROTTLED)
+                        .setDiagnostics("Validation request rejected, retry later: " + response.getBody())
+        );
+        return throttledOutcome;
     }
 
     private OperationOutcome createErrorOutcome(String errorMessage) {
@@ -169,13 +659,14 @@ public class ValidateOpCustomizer {
         return errorOutcome;
     }
 
-    private IParser getAppropriateParser(ServletRequestDetails theRequestDetails, boolean isJson) {
-        return isJson ?
-                theRequestDetails.getFhirContext().newJsonParser() :
-                theRequestDetails.getFhirContext().newXmlParser();
+    private static EncodingEnum getEncoding(boolean isJson) {
+        return isJson ? EncodingEnum.JSON : EncodingEnum.XML;
     }
 
-    String getInfernoUrl() {
+    /**
+     * Validator URL, or a comma-separated list of URLs when several validator instances share the load.
+     */
+    static String getInfernoUrl() {
         if (System.getenv("INFERNO_URL") != null) {
             return System.getenv("INFERNO_URL");
         } else {
@@ -0,0 +1,43 @@
+package org.cylab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Validates a single resource and returns the validator's OperationOutcome as JSON.
+ * <p>
+ * Implementations report failures through the result status ({@link ValidationResponseResult#STATUS_FAILED},
+ * {@link ValidationResponseResult#STATUS_REJECTED} or an HTTP error status) rather than by throwing.
+ */
+public interface ValidationBackend {
+
+    /**
+     * @param resource the resource as submitted, in JSON or XML
+     */
+    ValidationResponseResult validate(byte[] resource);
+
+    /**
+     * Validates a resource stored in a file, such as a request body spilled to disk. The default reads the file
+     * into memory; backends that can stream it override this.
+     */
+    default ValidationResponseResult validate(Path resource) {
+        try {
+            return validate(Files.readAllBytes(resource));
+        } catch (IOException e) {
+            return new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED);
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #validate(byte[])}; the future never completes exceptionally.
+     */
+    CompletableFuture<ValidationResponseResult> validateAsync(byte[] resource);
+
+    /**
+     * Longest time a single validation can take before it is reported as failed.
+     */
+    Duration getMaxCallDuration();
+}
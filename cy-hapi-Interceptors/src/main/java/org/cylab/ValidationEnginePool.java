@@ -0,0 +1,168 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.validation.IgLoader;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates resources in process with the HL7 {@code ValidationEngine} instead of calling an external validator.
+ * <p>
+ * One engine is built at startup from the core package and the configured IG packages, then copied into a pool;
+ * engines are not thread safe, so each validation borrows one exclusively. Every engine validates a small sample
+ * resource before the pool is handed out, so the first real request does not pay for lazy initialization.
+ * Results are converted to an R4 OperationOutcome in JSON, the same shape the external validator returns.
+ */
+public class ValidationEnginePool implements ValidationBackend {
+    private static final Logger logger = LoggerFactory.getLogger(ValidationEnginePool.class);
+    private static final byte[] WARM_UP_RESOURCE = "{\"resourceType\":\"Patient\",\"active\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private final BlockingQueue<ValidationEngine> engines;
+    private final ExecutorService executor;
+    private final Duration borrowTimeout;
+    private final Duration callTimeout;
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    public ValidationEnginePool(ValidationEngine prototype, int size, Duration borrowTimeout) throws Exception {
+        this(prototype, size, borrowTimeout, Duration.ofSeconds(60));
+    }
+
+    /**
+     * @param prototype     a fully loaded engine; the pool holds {@code size} copies of it
+     * @param borrowTimeout how long a validation waits for a free engine before it is rejected
+     * @param callTimeout   how long a validation may run on an engine before an asynchronous request gives up on it
+     */
+    public ValidationEnginePool(ValidationEngine prototype, int size, Duration borrowTimeout, Duration callTimeout) throws Exception {
+        int poolSize = Math.max(1, size);
+        this.engines = new ArrayBlockingQueue<>(poolSize);
+        this.borrowTimeout = borrowTimeout;
+        this.callTimeout = callTimeout;
+        this.executor = Executors.newFixedThreadPool(poolSize, new ThreadFactoryBuilder()
+                .setNameFormat("validation-engine-%d")
+                .setDaemon(true)
+                .build());
+
+        engines.add(prototype);
+        for (int i = 1; i < poolSize; i++) {
+            engines.add(new ValidationEngine(prototype));
+        }
+        for (ValidationEngine engine : engines) {
+            engine.validate(WARM_UP_RESOURCE, Manager.FhirFormat.JSON, List.of(), new ArrayList<>());
+        }
+    }
+
+    /**
+     * Builds the pool from {@code VALIDATOR_ENGINE_*} settings.
+     */
+    static ValidationEnginePool fromEnvironment() {
+        String corePackage = EnvironmentSettings.getString("VALIDATOR_ENGINE_CORE_PACKAGE", "hl7.fhir.r4.core#4.0.1");
+        String packageCache = EnvironmentSettings.getString("VALIDATOR_ENGINE_PACKAGE_CACHE", null);
+        String txServer = EnvironmentSettings.getString("VALIDATOR_ENGINE_TX_SERVER", null);
+        String igs = EnvironmentSettings.getString("VALIDATOR_ENGINE_IGS", "");
+        int size = EnvironmentSettings.getInt("VALIDATOR_ENGINE_POOL_SIZE", Runtime.getRuntime().availableProcessors());
+
+        long start = System.nanoTime();
+        try {
+            ValidationEngine.ValidationEngineBuilder builder = new ValidationEngine.ValidationEngineBuilder()
+                    .withVersion("4.0.1")
+                    .withCanRunWithoutTerminologyServer(true);
+            builder = txServer == null || txServer.isEmpty()
+                    ? builder.withNoTerminologyServer()
+                    : builder.withTxServer(txServer, null, FhirPublication.R4, false);
+            ValidationEngine engine = builder.fromSource(corePackage);
+
+            if (packageCache != null && !packageCache.isEmpty()) {
+                // IG 從本地 package cache 目錄載入, 已存在的 package 不會再下載
+                engine.setPcm(new FilesystemPackageCacheManager.Builder().withCacheFolder(packageCache).build());
+                engine.setIgLoader(new IgLoader(engine.getPcm(), engine.getContext(), engine.getVersion(), engine.isDebug()));
+            }
+            for (String ig : Arrays.stream(igs.split(",")).map(String::trim).filter(value -> !value.isEmpty()).toList()) {
+                engine.getIgLoader().loadIg(engine.getIgs(), engine.getBinaries(), ig, false);
+            }
+            engine.prepare();
+
+            // 未設定時沿用外部 validator 的 read timeout
+            long callTimeoutMillis = EnvironmentSettings.getLong("VALIDATOR_EMBEDDED_CALL_TIMEOUT_MS",
+                    EnvironmentSettings.getLong("INFERNO_READ_TIMEOUT_MS", 60_000));
+            ValidationEnginePool pool = new ValidationEnginePool(engine, size,
+                    Duration.ofMillis(EnvironmentSettings.getLong("VALIDATOR_ENGINE_TIMEOUT_MS", 60_000)),
+                    Duration.ofMillis(callTimeoutMillis));
+            logger.info("Validation engine pool of {} ready in {} ms", size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return pool;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to initialize the validation engine", e);
+        }
+    }
+
+    @Override
+    public ValidationResponseResult validate(byte[] resource) {
+        long start = System.nanoTime();
+        ValidationResponseResult result = validateWithEngine(resource);
+        InterceptorMetrics.recordPhase(InterceptorMetrics.Phase.VALIDATOR, start);
+        InterceptorMetrics.recordValidatorResponse(result.getStatus());
+        return result;
+    }
+
+    private ValidationResponseResult validateWithEngine(byte[] resource) {
+        ValidationEngine engine;
+        try {
+            engine = engines.poll(borrowTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED);
+        }
+        if (engine == null) {
+            logger.warn("No validation engine became free within {} ms, rejecting request", borrowTimeout.toMillis());
+            return new ValidationResponseResult("Error: too many concurrent validation requests", ValidationResponseResult.STATUS_REJECTED);
+        }
+
+        try {
+            org.hl7.fhir.r5.model.OperationOutcome outcome = engine.validate(resource, detectFormat(resource), List.of(), new ArrayList<>());
+            org.hl7.fhir.r4.model.Resource converted = VersionConvertorFactory_40_50.convertResource(outcome);
+            byte[] json = fhirContext.newJsonParser().encodeResourceToString(converted).getBytes(StandardCharsets.UTF_8);
+            return new ValidationResponseResult(json, 200);
+        } catch (Exception e) {
+            logger.error("In-process validation failed", e);
+            return new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED);
+        } finally {
+            engines.add(engine);
+        }
+    }
+
+    @Override
+    public CompletableFuture<ValidationResponseResult> validateAsync(byte[] resource) {
+        return CompletableFuture.supplyAsync(() -> validate(resource), executor);
+    }
+
+    @Override
+    public Duration getMaxCallDuration() {
+        return borrowTimeout.plus(callTimeout);
+    }
+
+    private static Manager.FhirFormat detectFormat(byte[] resource) {
+        for (byte b : resource) {
+            if (!Character.isWhitespace(b) && b != (byte) 0xEF && b != (byte) 0xBB && b != (byte) 0xBF) {
+                return b == '<' ? Manager.FhirFormat.XML : Manager.FhirFormat.JSON;
+            }
+        }
+        return Manager.FhirFormat.JSON;
+    }
+}
@@ -0,0 +1,161 @@
+package org.cylab;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs {@code $validate} requests sent with {@code Prefer: respond-async} in the background and keeps their
+ * outcomes until the client polls for them.
+ * <p>
+ * Jobs run on a fixed pool of workers with a bounded queue; when the queue is full no job is created and the
+ * caller answers {@code 429}. Finished jobs are kept for {@code timeToLive} after completion, pending jobs for
+ * {@code timeToLive} after submission (their entry is refreshed when they finish).
+ */
+public class ValidationJobStore {
+    private static final Logger logger = LoggerFactory.getLogger(ValidationJobStore.class);
+
+    private final Cache<String, Job> jobs;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads    validations running at once
+     * @param queueSize  jobs waiting for a worker before new jobs are refused
+     * @param maxJobs    jobs kept, pending or finished, before the oldest are dropped
+     * @param timeToLive how long a finished job can be polled
+     */
+    public ValidationJobStore(int threads, int queueSize, long maxJobs, Duration timeToLive) {
+        this.jobs = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, maxJobs))
+                .expireAfterWrite(timeToLive)
+                .build();
+        this.executor = new ThreadPoolExecutor(
+                Math.max(1, threads),
+                Math.max(1, threads),
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("validate-job-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Creates the store from {@code VALIDATE_JOB_*} settings, or returns {@code null} unless
+     * {@code VALIDATE_RESPOND_ASYNC} enables {@code Prefer: respond-async}.
+     */
+    static ValidationJobStore fromEnvironment() {
+        if (!EnvironmentSettings.getBoolean("VALIDATE_RESPOND_ASYNC", false)) {
+            return null;
+        }
+        return new ValidationJobStore(
+                EnvironmentSettings.getInt("VALIDATE_JOB_THREADS", 2),
+                EnvironmentSettings.getInt("VALIDATE_JOB_QUEUE_SIZE", 100),
+                EnvironmentSettings.getLong("VALIDATE_JOB_MAX_JOBS", 1_000),
+                Duration.ofSeconds(EnvironmentSettings.getLong("VALIDATE_JOB_TTL_SECONDS", 600))
+        );
+    }
+
+    /**
+     * Queues a validation.
+     *
+     * @return the new job, or {@code null} if the queue is full
+     */
+    Job submit(Supplier<Result> task) {
+        Job job = new Job(UUID.randomUUID().toString());
+        jobs.put(job.id, job);
+        try {
+            job.future = executor.submit(() -> {
+                Result result;
+                try {
+                    result = task.get();
+                } catch (RuntimeException e) {
+                    logger.error("Validation job {} failed", job.id, e);
+                    OperationOutcome outcome = new OperationOutcome();
+                    outcome.addIssue()
+                            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                            .setCode(OperationOutcome.IssueType.EXCEPTION)
+                            .setDiagnostics("Error validating request: " + e.getMessage());
+                    result = new Result(500, outcome);
+                }
+                job.result = result;
+                // 重新寫入, 讓完成的 job 從完成時起算保留時間
+                if (jobs.getIfPresent(job.id) == job) {
+                    jobs.put(job.id, job);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.invalidate(job.id);
+            return null;
+        }
+        return job;
+    }
+
+    Job get(String id) {
+        return id != null ? jobs.getIfPresent(id) : null;
+    }
+
+    /**
+     * Forgets a job; a job that has not started yet is cancelled.
+     *
+     * @return {@code false} if the job does not exist or has expired
+     */
+    boolean remove(String id) {
+        Job job = get(id);
+        if (job == null) {
+            return false;
+        }
+        jobs.invalidate(id);
+        if (job.future != null) {
+            job.future.cancel(false);
+        }
+        return true;
+    }
+
+    public long size() {
+        return jobs.size();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    static final class Job {
+        private final String id;
+        private volatile Future<?> future;
+        private volatile Result result;
+
+        private Job(String id) {
+            this.id = id;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the outcome, or {@code null} while the job is still running.
+         */
+        Result getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * The HTTP status and OperationOutcome the synchronous request would have been answered with.
+     */
+    record Result(int status, OperationOutcome outcome) {
+    }
+}
@@ -1,24 +1,57 @@
 package org.cylab;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
 public class ValidationResponseResult {
+    /**
+     * Status of a call that did not get an HTTP response (connection error, timeout, ...).
+     */
+    public static final int STATUS_FAILED = -1;
+    /**
+     * Status of a call rejected locally because too many calls were already in flight.
+     */
+    public static final int STATUS_REJECTED = -2;
+
     private String body;
+    private final byte[] rawBody;
     private int status;
 
     public ValidationResponseResult(String body, int status) {
         this.body = body;
+        this.rawBody = null;
+        this.status = status;
+    }
+
+    /**
+     * @param rawBody the UTF-8 response body as received; it is only decoded to a String if {@link #getBody()} is called
+     */
+    public ValidationResponseResult(byte[] rawBody, int status) {
+        this.rawBody = rawBody;
         this.status = status;
     }
 
     public String getBody() {
+        if (body == null && rawBody != null) {
+            body = new String(rawBody, StandardCharsets.UTF_8);
+        }
         return body;
     }
 
+    /**
+     * Returns the body for parsing, without decoding it to a String first.
+     */
+    public InputStream getBodyStream() {
+        return new ByteArrayInputStream(rawBody != null ? rawBody : getBody().getBytes(StandardCharsets.UTF_8));
+    }
+
     public int getStatus() {
         return status;
     }
 
     @Override
     public String toString() {
-        return "Status: " + status + ", Body: " + body;
+        return "Status: " + status + ", Body: " + getBody();
     }
 }
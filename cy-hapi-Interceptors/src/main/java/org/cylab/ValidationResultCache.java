@@ -0,0 +1,143 @@
+package org.cylab;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+
+/**
+ * Bounded cache of {@code $validate} outcomes keyed by a hash of the request content.
+ * <p>
+ * JSON bodies are hashed token by token, so formatting differences do not produce different keys.
+ * The request path and the {@code profile} / {@code mode} parameters are part of the key as well.
+ * Outcomes are copied on the way in and out, so callers may modify what they get back.
+ */
+public class ValidationResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(ValidationResultCache.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String[] KEY_PARAMETERS = {"profile", "mode"};
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Cache<String, OperationOutcome> cache;
+    private final boolean enabled;
+
+    public ValidationResultCache() {
+        this(
+                EnvironmentSettings.getLong("VALIDATION_CACHE_MAX_SIZE", 1_000),
+                Duration.ofSeconds(EnvironmentSettings.getLong("VALIDATION_CACHE_TTL_SECONDS", 600))
+        );
+    }
+
+    public ValidationResultCache(long maximumSize, Duration timeToLive) {
+        this.enabled = maximumSize > 0 && !timeToLive.isZero() && !timeToLive.isNegative();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, maximumSize))
+                .expireAfterWrite(timeToLive.isNegative() ? Duration.ZERO : timeToLive)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the content key for a request, or {@code null} if the body could not be canonicalized.
+     * The key is computed even when caching is disabled, since it also identifies identical in-flight requests.
+     * The body is hashed while it is streamed, so a body spilled to disk is not loaded into memory.
+     *
+     * @throws IOException if the body cannot be read
+     */
+    public String createKey(RequestDetails theRequestDetails, InputStream requestBody, boolean isJson) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, theRequestDetails.getRequestPath());
+        for (String parameterName : KEY_PARAMETERS) {
+            String[] values = theRequestDetails.getParameters().get(parameterName);
+            if (values != null) {
+                for (String value : values) {
+                    update(digest, parameterName + "=" + value);
+                }
+            }
+        }
+
+        if (isJson) {
+            try {
+                updateWithJsonTokens(digest, requestBody);
+            } catch (JsonProcessingException e) {
+                logger.debug("Request body is not valid JSON, skipping validation cache", e);
+                return null;
+            }
+        } else {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = requestBody.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public OperationOutcome get(String key) {
+        if (key == null || !enabled) {
+            return null;
+        }
+        OperationOutcome outcome = cache.getIfPresent(key);
+        return outcome == null ? null : outcome.copy();
+    }
+
+    public void put(String key, OperationOutcome outcome) {
+        if (key != null && enabled) {
+            cache.put(key, outcome.copy());
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static void updateWithJsonTokens(MessageDigest digest, InputStream requestBody) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(requestBody)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                digest.update((byte) token.id());
+                if (token == JsonToken.FIELD_NAME || token.isScalarValue()) {
+                    update(digest, parser.getText());
+                }
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        digest.update(bytes);
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
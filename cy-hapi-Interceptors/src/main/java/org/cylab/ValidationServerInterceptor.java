@@ -0,0 +1,85 @@
+package org.cylab;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+
+/**
+ * Registers the operations of this package with the server as one interceptor.
+ * <p>
+ * Builds an {@link OperationRouter} over {@link ValidateOpCustomizer}, {@link ValidateCodeOpCustomizer},
+ * {@link InterceptorMetrics} and {@link InterceptorWarmUp}, so every request passes a single
+ * {@code SERVER_INCOMING_REQUEST_PRE_HANDLER_SELECTED} hook, and forwards the remaining hooks of
+ * {@link ValidateCodeOpCustomizer}. An enabled warm-up with a configured base URL starts when the interceptor is
+ * registered. Add {@code org.cylab.ValidationServerInterceptor} to {@code hapi.fhir.custom-interceptor-classes}; a server that wires
+ * the interceptors itself can register an {@link OperationRouter} and the providers' hooks instead.
+ */
+@Interceptor
+public class ValidationServerInterceptor {
+    private final ValidateCodeOpCustomizer validateCodeOpCustomizer;
+    private final InterceptorWarmUp interceptorWarmUp;
+    private final OperationRouter operationRouter;
+
+    public ValidationServerInterceptor() {
+        this(new ValidateOpCustomizer(), new ValidateCodeOpCustomizer(), new InterceptorMetrics(), new InterceptorWarmUp());
+    }
+
+    public ValidationServerInterceptor(ValidateOpCustomizer validateOpCustomizer,
+                                       ValidateCodeOpCustomizer validateCodeOpCustomizer,
+                                       InterceptorMetrics interceptorMetrics,
+                                       InterceptorWarmUp interceptorWarmUp) {
+        this.validateCodeOpCustomizer = validateCodeOpCustomizer;
+        this.interceptorWarmUp = interceptorWarmUp;
+        this.operationRouter = new OperationRouter(validateOpCustomizer, validateCodeOpCustomizer, interceptorMetrics, interceptorWarmUp);
+    }
+
+    @Hook(Pointcut.INTERCEPTOR_REGISTERED)
+    public void onRegistered() {
+        interceptorWarmUp.start();
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLER_SELECTED)
+    public boolean onIncomingRequest(ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
+        return operationRouter.onIncomingRequest(theRequestDetails, theServletRequest, theServletResponse);
+    }
+
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public void onOutgoingResponse(RequestDetails theRequestDetails,
+                                   ServletRequestDetails theServletRequestDetails,
+                                   IBaseResource theResource,
+                                   ResponseDetails theResponseDetails) {
+        validateCodeOpCustomizer.onOutgoingResponse(theRequestDetails, theServletRequestDetails, theResource, theResponseDetails);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void onResourceCreated(IBaseResource theResource, RequestDetails theRequestDetails) {
+        validateCodeOpCustomizer.onResourceCreated(theResource, theRequestDetails);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void onResourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource, RequestDetails theRequestDetails) {
+        validateCodeOpCustomizer.onResourceUpdated(theOldResource, theNewResource, theRequestDetails);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void onResourceDeleted(IBaseResource theResource, RequestDetails theRequestDetails) {
+        validateCodeOpCustomizer.onResourceDeleted(theResource, theRequestDetails);
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void onProcessingCompleted(RequestDetails theRequestDetails) {
+        try {
+            validateCodeOpCustomizer.onProcessingCompleted(theRequestDetails);
+        } finally {
+            operationRouter.onProcessingCompleted(theRequestDetails);
+        }
+    }
+}
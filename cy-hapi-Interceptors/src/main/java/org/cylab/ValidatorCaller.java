@@ -1,55 +1,241 @@
 package org.cylab;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends validation requests to the external validator (Inferno).
+ * <p>
+ * One instance holds a single {@link HttpClient}, so connections are pooled and kept alive
+ * across requests instead of being opened and closed for every {@code $validate}.
+ * The number of concurrent calls is capped by {@code INFERNO_MAX_IN_FLIGHT}; callers that
+ * cannot get a slot within the read timeout fail fast instead of piling up.
+ * <p>
+ * Payloads are sent and received as bytes; payloads of at least {@code INFERNO_REQUEST_GZIP_MIN_BYTES} are
+ * gzip-compressed for validators that accept {@code Content-Encoding: gzip}.
+ */
 public class ValidatorCaller {
-    public ValidationResponseResult sendJsonRequest(String targetUrl, String jsonPayload) {
-        HttpURLConnection connection = null;
-        StringBuilder response = new StringBuilder();
-        int statusCode = -1;
+    private static final Logger logger = LoggerFactory.getLogger(ValidatorCaller.class);
+    private static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(5);
 
-        try {
-            // 建立 URL 連線
-            URL url = new URL(targetUrl);
-            connection = (HttpURLConnection) url.openConnection();
-
-            // 設定請求屬性
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; utf-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoOutput(true);
-
-            // 傳送 JSON 請求
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonPayload.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+    private final HttpClient httpClient;
+    private final Duration readTimeout;
+    private final Semaphore inFlightPermits;
+    private final int gzipMinBytes;
+
+    public ValidatorCaller() {
+        this(
+                EnvironmentSettings.getBoolean("INFERNO_HTTP2", false),
+                Duration.ofMillis(EnvironmentSettings.getLong("INFERNO_CONNECT_TIMEOUT_MS", 5_000)),
+                Duration.ofMillis(EnvironmentSettings.getLong("INFERNO_READ_TIMEOUT_MS", 60_000)),
+                EnvironmentSettings.getInt("INFERNO_MAX_IN_FLIGHT", 64),
+                EnvironmentSettings.getInt("INFERNO_REQUEST_GZIP_MIN_BYTES", 0)
+        );
+    }
+
+    public ValidatorCaller(boolean http2, Duration connectTimeout, Duration readTimeout, int maxInFlight) {
+        this(http2, connectTimeout, readTimeout, maxInFlight, 0);
+    }
+
+    /**
+     * @param gzipMinBytes payload size from which requests are gzip-compressed, {@code 0} to never compress
+     */
+    public ValidatorCaller(boolean http2, Duration connectTimeout, Duration readTimeout, int maxInFlight, int gzipMinBytes) {
+        this(
+                HttpClient.newBuilder()
+                        .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                        .connectTimeout(connectTimeout)
+                        .followRedirects(HttpClient.Redirect.NORMAL)
+                        .build(),
+                readTimeout,
+                maxInFlight,
+                gzipMinBytes
+        );
+    }
+
+    public ValidatorCaller(HttpClient httpClient, Duration readTimeout, int maxInFlight) {
+        this(httpClient, readTimeout, maxInFlight, 0);
+    }
+
+    public ValidatorCaller(HttpClient httpClient, Duration readTimeout, int maxInFlight, int gzipMinBytes) {
+        this.httpClient = httpClient;
+        this.readTimeout = readTimeout;
+        this.inFlightPermits = new Semaphore(Math.max(1, maxInFlight), true);
+        this.gzipMinBytes = Math.max(0, gzipMinBytes);
+    }
 
-            // 取得回應狀態碼
-            statusCode = connection.getResponseCode();
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public ValidationResponseResult sendJsonRequest(String targetUrl, byte[] jsonPayload) {
+        long start = System.nanoTime();
+        return recordResult(send(targetUrl, buildRequest(targetUrl, jsonPayload)), start);
+    }
+
+    /**
+     * Sends the JSON payload stored in a file, such as a request body spilled to disk. The file is streamed to the
+     * validator unless it is large enough to be gzip-compressed, in which case it is compressed into memory.
+     */
+    public ValidationResponseResult sendJsonRequest(String targetUrl, Path jsonPayload) {
+        long start = System.nanoTime();
+        HttpRequest request;
+        try {
+            request = buildRequest(targetUrl, jsonPayload);
+        } catch (IOException e) {
+            logger.error("Failed to read validation payload {}", jsonPayload, e);
+            return recordResult(new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED), start);
+        }
+        return recordResult(send(targetUrl, request), start);
+    }
 
-            // 接收回應
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
-                }
+    private ValidationResponseResult send(String targetUrl, HttpRequest request) {
+        boolean acquired = false;
+        try {
+            acquired = inFlightPermits.tryAcquire(readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                logger.warn("Too many in-flight validator calls, rejecting request to {}", targetUrl);
+                return new ValidationResponseResult("Error: too many concurrent validation requests", ValidationResponseResult.STATUS_REJECTED);
             }
+
+            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            return new ValidationResponseResult(response.body(), response.statusCode());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED);
         } catch (Exception e) {
-            e.printStackTrace();
-            return new ValidationResponseResult("Error: " + e.getMessage(), statusCode);
+            logger.error("Failed to call validator at {}", targetUrl, e);
+            return new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED);
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            if (acquired) {
+                inFlightPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #sendJsonRequest(String, byte[])}. The returned future never completes
+     * exceptionally; failures are reported as a result with a negative status. Since the caller must not block,
+     * a call that finds every in-flight slot taken fails immediately instead of waiting for one.
+     */
+    public CompletableFuture<ValidationResponseResult> sendJsonRequestAsync(String targetUrl, byte[] jsonPayload) {
+        long start = System.nanoTime();
+        return sendAsync(targetUrl, jsonPayload).thenApply(result -> recordResult(result, start));
+    }
+
+    private CompletableFuture<ValidationResponseResult> sendAsync(String targetUrl, byte[] jsonPayload) {
+        if (!inFlightPermits.tryAcquire()) {
+            logger.warn("Too many in-flight validator calls, rejecting request to {}", targetUrl);
+            return CompletableFuture.completedFuture(new ValidationResponseResult("Error: too many concurrent validation requests", ValidationResponseResult.STATUS_REJECTED));
+        }
+
+        CompletableFuture<HttpResponse<byte[]>> call;
+        try {
+            call = httpClient.sendAsync(buildRequest(targetUrl, jsonPayload), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            logger.error("Failed to call validator at {}", targetUrl, e);
+            return CompletableFuture.completedFuture(new ValidationResponseResult("Error: " + e.getMessage(), ValidationResponseResult.STATUS_FAILED));
+        }
+
+        return call.handle((response, error) -> {
+            inFlightPermits.release();
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                logger.error("Failed to call validator at {}", targetUrl, cause);
+                return new ValidationResponseResult("Error: " + cause.getMessage(), ValidationResponseResult.STATUS_FAILED);
             }
+            return new ValidationResponseResult(response.body(), response.statusCode());
+        });
+    }
+
+    private static ValidationResponseResult recordResult(ValidationResponseResult result, long startNanos) {
+        InterceptorMetrics.recordPhase(InterceptorMetrics.Phase.VALIDATOR, startNanos);
+        InterceptorMetrics.recordValidatorResponse(result.getStatus());
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if the URL answers a GET with anything but a server error, i.e. the validator process is up.
+     * Health checks do not count against the in-flight limit.
+     */
+    public boolean checkHealth(String url) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(HEALTH_CHECK_TIMEOUT.compareTo(readTimeout) < 0 ? HEALTH_CHECK_TIMEOUT : readTimeout)
+                .GET()
+                .build();
+        try {
+            return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() < 500;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.debug("Health check of {} failed", url, e);
+            return false;
         }
+    }
+
+    private HttpRequest buildRequest(String targetUrl, byte[] jsonPayload) {
+        HttpRequest.Builder builder = newRequestBuilder(targetUrl);
+        if (gzipMinBytes > 0 && jsonPayload.length >= gzipMinBytes) {
+            builder.header("Content-Encoding", "gzip");
+            jsonPayload = gzip(jsonPayload);
+        }
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(jsonPayload)).build();
+    }
+
+    private HttpRequest buildRequest(String targetUrl, Path jsonPayload) throws IOException {
+        HttpRequest.Builder builder = newRequestBuilder(targetUrl);
+        long size = Files.size(jsonPayload);
+        if (gzipMinBytes > 0 && size >= gzipMinBytes) {
+            builder.header("Content-Encoding", "gzip");
+            return builder.POST(HttpRequest.BodyPublishers.ofByteArray(gzip(jsonPayload, size))).build();
+        }
+        // 檔案在送出時才讀取, 重試時會重新讀取
+        return builder.POST(HttpRequest.BodyPublishers.ofFile(jsonPayload)).build();
+    }
 
-        return new ValidationResponseResult(response.toString(), statusCode);
+    private HttpRequest.Builder newRequestBuilder(String targetUrl) {
+        return HttpRequest.newBuilder(URI.create(targetUrl))
+                .timeout(readTimeout)
+                .header("Content-Type", "application/json; charset=utf-8")
+                .header("Accept", "application/json");
+    }
+
+    private static byte[] gzip(byte[] payload) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+            gzip.write(payload);
+        } catch (IOException e) {
+            // 寫入記憶體不會失敗
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gzip(Path payload, long size) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(size / 4 + 64, Integer.MAX_VALUE - 8));
+        try (InputStream in = Files.newInputStream(payload);
+             GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+            in.transferTo(gzip);
+        }
+        return compressed.toByteArray();
     }
 }
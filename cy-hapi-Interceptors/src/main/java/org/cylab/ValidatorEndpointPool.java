@@ -0,0 +1,289 @@
+package org.cylab;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Spreads validator calls over one or more validator endpoints.
+ * <p>
+ * Each call goes to the available endpoint with the fewest outstanding requests. An endpoint is unavailable while its
+ * health probe fails or while its circuit breaker is open; the breaker opens after a number of consecutive failures
+ * and lets a single trial call through once the open period has passed. A call that fails with a connection error,
+ * a timeout or a 5xx is retried on another endpoint, up to the configured number of attempts.
+ */
+public class ValidatorEndpointPool implements ValidationBackend {
+    private static final Logger logger = LoggerFactory.getLogger(ValidatorEndpointPool.class);
+
+    private final ValidatorCaller validatorCaller;
+    private final List<Endpoint> endpoints;
+    private final int failureThreshold;
+    private final int maxAttempts;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * @param urls             validator URLs
+     * @param failureThreshold consecutive failures that open an endpoint's circuit breaker
+     * @param openDuration     how long an open breaker keeps the endpoint out of rotation
+     * @param maxAttempts      endpoints tried per call, including the first one
+     */
+    public ValidatorEndpointPool(ValidatorCaller validatorCaller, List<String> urls, int failureThreshold, Duration openDuration, int maxAttempts) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one validator URL is required");
+        }
+        this.validatorCaller = validatorCaller;
+        this.endpoints = urls.stream().map(url -> new Endpoint(url, openDuration)).toList();
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.maxAttempts = Math.max(1, Math.min(maxAttempts, endpoints.size()));
+    }
+
+    /**
+     * Creates a pool for a comma-separated list of URLs, configured by the {@code INFERNO_*} settings,
+     * and starts health probing if {@code INFERNO_HEALTH_INTERVAL_MS} is set. Probing is off by default, since not every
+     * validator has a health path; the circuit breaker still takes failing endpoints out of rotation.
+     */
+    static ValidatorEndpointPool fromEnvironment(ValidatorCaller validatorCaller, String urls) {
+        List<String> urlList = Arrays.stream(urls.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList();
+        ValidatorEndpointPool pool = new ValidatorEndpointPool(
+                validatorCaller,
+                urlList,
+                EnvironmentSettings.getInt("INFERNO_CIRCUIT_FAILURE_THRESHOLD", 5),
+                Duration.ofMillis(EnvironmentSettings.getLong("INFERNO_CIRCUIT_OPEN_MS", 30_000)),
+                EnvironmentSettings.getInt("INFERNO_MAX_ATTEMPTS", 2)
+        );
+        long healthInterval = EnvironmentSettings.getLong("INFERNO_HEALTH_INTERVAL_MS", 0);
+        if (healthInterval > 0) {
+            pool.startHealthChecks(EnvironmentSettings.getString("INFERNO_HEALTH_PATH", "version"), Duration.ofMillis(healthInterval));
+        }
+        return pool;
+    }
+
+    /**
+     * Probes every endpoint periodically with a GET on {@code healthPath}, resolved against the endpoint URL.
+     */
+    public void startHealthChecks(String healthPath, Duration interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("validator-health-%d")
+                .setDaemon(true)
+                .build());
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (Endpoint endpoint : endpoints) {
+                boolean healthy = validatorCaller.checkHealth(URI.create(endpoint.url).resolve(healthPath).toString());
+                if (healthy != endpoint.healthy) {
+                    logger.warn("Validator endpoint {} is now {}", endpoint.url, healthy ? "healthy" : "unhealthy");
+                }
+                endpoint.healthy = healthy;
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Longest time a call can take, with every attempt running into the read timeout.
+     */
+    @Override
+    public Duration getMaxCallDuration() {
+        return validatorCaller.getReadTimeout().multipliedBy(maxAttempts);
+    }
+
+    public List<String> getUrls() {
+        return endpoints.stream().map(endpoint -> endpoint.url).toList();
+    }
+
+    @Override
+    public ValidationResponseResult validate(byte[] resource) {
+        return sendJsonRequest(resource);
+    }
+
+    @Override
+    public CompletableFuture<ValidationResponseResult> validateAsync(byte[] resource) {
+        return sendJsonRequestAsync(resource);
+    }
+
+    /**
+     * Streams the resource from the file to the validator instead of reading it into memory.
+     */
+    @Override
+    public ValidationResponseResult validate(Path resource) {
+        return send(url -> validatorCaller.sendJsonRequest(url, resource));
+    }
+
+    public ValidationResponseResult sendJsonRequest(byte[] jsonPayload) {
+        return send(url -> validatorCaller.sendJsonRequest(url, jsonPayload));
+    }
+
+    private ValidationResponseResult send(Function<String, ValidationResponseResult> call) {
+        Set<Endpoint> tried = new HashSet<>();
+        ValidationResponseResult result = noEndpointResult();
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            Endpoint endpoint = acquire(tried);
+            if (endpoint == null) {
+                break;
+            }
+            try {
+                result = call.apply(endpoint.url);
+            } finally {
+                endpoint.outstanding.decrementAndGet();
+            }
+            if (!record(endpoint, result)) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    public CompletableFuture<ValidationResponseResult> sendJsonRequestAsync(byte[] jsonPayload) {
+        return sendAsync(jsonPayload, new HashSet<>(), 0, noEndpointResult());
+    }
+
+    private CompletableFuture<ValidationResponseResult> sendAsync(byte[] jsonPayload, Set<Endpoint> tried, int attempt, ValidationResponseResult previous) {
+        Endpoint endpoint = attempt < maxAttempts ? acquire(tried) : null;
+        if (endpoint == null) {
+            return CompletableFuture.completedFuture(previous);
+        }
+        return validatorCaller.sendJsonRequestAsync(endpoint.url, jsonPayload)
+                .thenCompose(result -> {
+                    endpoint.outstanding.decrementAndGet();
+                    return record(endpoint, result)
+                            ? sendAsync(jsonPayload, tried, attempt + 1, result)
+                            : CompletableFuture.completedFuture(result);
+                });
+    }
+
+    /**
+     * Picks the available endpoint with the fewest outstanding calls that has not been tried yet,
+     * and counts the call against it. Returns {@code null} if there is none.
+     */
+    private Endpoint acquire(Set<Endpoint> tried) {
+        long now = System.nanoTime();
+        int start = Math.floorMod(rotation.getAndIncrement(), endpoints.size());
+        Endpoint best = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+            if (tried.contains(endpoint) || !endpoint.isAvailable(now)) {
+                continue;
+            }
+            if (best == null || endpoint.outstanding.get() < best.outstanding.get()) {
+                best = endpoint;
+            }
+        }
+        if (best != null && !best.tryEnter(now)) {
+            // 另一個請求剛取得 half-open 的試探機會, 改試其他 endpoint
+            tried.add(best);
+            return acquire(tried);
+        }
+        if (best != null) {
+            tried.add(best);
+            best.outstanding.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * Updates the endpoint's breaker with the result and returns {@code true} if the call should be retried elsewhere.
+     */
+    private boolean record(Endpoint endpoint, ValidationResponseResult result) {
+        int status = result.getStatus();
+        if (status == ValidationResponseResult.STATUS_REJECTED) {
+            endpoint.releaseTrial();
+            return false;
+        }
+        boolean failed = status == ValidationResponseResult.STATUS_FAILED || status >= 500;
+        if (failed) {
+            endpoint.recordFailure(failureThreshold, System.nanoTime());
+        } else {
+            endpoint.recordSuccess();
+        }
+        return failed;
+    }
+
+    private static ValidationResponseResult noEndpointResult() {
+        return new ValidationResponseResult("Error: no validator endpoint available", ValidationResponseResult.STATUS_FAILED);
+    }
+
+    /**
+     * Returns the current state of each endpoint, for logging and diagnostics.
+     */
+    public List<String> describe() {
+        return endpoints.stream().map(Endpoint::describe).toList();
+    }
+
+    private static final class Endpoint {
+        private final String url;
+        private final long openNanos;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean healthy = true;
+
+        // circuit breaker 狀態
+        private int consecutiveFailures;
+        private boolean open;
+        private long openedAt;
+        private boolean trialInFlight;
+
+        private Endpoint(String url, Duration openDuration) {
+            this.url = url;
+            this.openNanos = openDuration.toNanos();
+        }
+
+        synchronized boolean isAvailable(long now) {
+            return healthy && (!open || (now - openedAt >= openNanos && !trialInFlight));
+        }
+
+        /**
+         * Claims the endpoint for a call; once the breaker's open period is over only one trial call gets through.
+         */
+        synchronized boolean tryEnter(long now) {
+            if (!open) {
+                return true;
+            }
+            if (now - openedAt < openNanos || trialInFlight) {
+                return false;
+            }
+            trialInFlight = true;
+            return true;
+        }
+
+        synchronized void releaseTrial() {
+            trialInFlight = false;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            open = false;
+            trialInFlight = false;
+        }
+
+        synchronized void recordFailure(int failureThreshold, long now) {
+            consecutiveFailures++;
+            trialInFlight = false;
+            if (open || consecutiveFailures >= failureThreshold) {
+                if (!open) {
+                    logger.warn("Opening circuit breaker for validator endpoint {}", url);
+                }
+                open = true;
+                openedAt = now;
+            }
+        }
+
+        synchronized String describe() {
+            return url + " healthy=" + healthy + " open=" + open + " outstanding=" + outstanding.get() +
+                    " consecutiveFailures=" + consecutiveFailures;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.cylab;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class AdmissionControllerTest {
+    private static final ValidationResponseResult REJECTED = new ValidationResponseResult("rejected", ValidationResponseResult.STATUS_REJECTED);
+    private static final ValidationResponseResult FAILED = new ValidationResponseResult("failed", ValidationResponseResult.STATUS_FAILED);
+
+    @Test
+    void queuesCallsOverTheLimitAndRejectsWhenTheQueueIsFull() {
+        AdmissionController controller = new AdmissionController(2, 1, 10, 1, Duration.ofMinutes(1), 0);
+
+        assertNotNull(controller.acquire().getNow(null));
+        assertNotNull(controller.acquire().getNow(null));
+        CompletableFuture<AdmissionController.Permit> queued = controller.acquire();
+        assertFalse(queued.isDone());
+        assertNull(controller.acquire().getNow(null));
+
+        assertEquals(2, controller.getInFlight());
+        assertEquals(1, controller.getQueueSize());
+    }
+
+    @Test
+    void releasingAPermitAdmitsTheNextWaiter() {
+        AdmissionController controller = new AdmissionController(1, 1, 10, 10, Duration.ofMinutes(1), 0);
+
+        AdmissionController.Permit first = controller.acquire().getNow(null);
+        CompletableFuture<AdmissionController.Permit> second = controller.acquire();
+        CompletableFuture<AdmissionController.Permit> third = controller.acquire();
+        assertFalse(second.isDone());
+
+        first.release(REJECTED);
+
+        assertNotNull(second.getNow(null));
+        assertFalse(third.isDone());
+        assertEquals(1, controller.getInFlight());
+        assertEquals(1, controller.getQueueSize());
+    }
+
+    @Test
+    void slotOfACancelledWaiterGoesToTheNextWaiterWithoutChangingTheLimit() {
+        AdmissionController controller = new AdmissionController(2, 1, 10, 10, Duration.ofMinutes(1), 0);
+
+        AdmissionController.Permit first = controller.acquire().getNow(null);
+        assertNotNull(controller.acquire().getNow(null));
+        CompletableFuture<AdmissionController.Permit> cancelled = controller.acquire();
+        CompletableFuture<AdmissionController.Permit> waiting = controller.acquire();
+        cancelled.cancel(false);
+
+        first.release(REJECTED);
+
+        assertNotNull(waiting.getNow(null));
+        assertEquals(2, controller.getLimit());
+        assertEquals(2, controller.getInFlight());
+        assertEquals(0, controller.getQueueSize());
+    }
+
+    @Test
+    void failedCallsShrinkTheLimit() {
+        AdmissionController controller = new AdmissionController(10, 1, 10, 10, Duration.ofMinutes(1), 0);
+
+        controller.acquire().getNow(null).release(FAILED);
+
+        assertEquals(9, controller.getLimit());
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    void waiterIsRejectedWhenItsQueueTimeoutPasses() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 10, 10, Duration.ofMillis(50), 0);
+
+        assertNotNull(controller.acquire().getNow(null));
+        CompletableFuture<AdmissionController.Permit> queued = controller.acquire();
+
+        assertNull(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(0, controller.getQueueSize());
+        assertEquals(1, controller.getInFlight());
+    }
+
+    @Test
+    void countsTheClientQuotaPerRequest() {
+        AdmissionController controller = new AdmissionController(10, 1, 10, 10, Duration.ofMinutes(1), 2);
+
+        AdmissionController.ClientPermit first = controller.acquireClient("a");
+        assertNotNull(first);
+        assertNotNull(controller.acquireClient("a"));
+        assertNull(controller.acquireClient("a"));
+        assertNotNull(controller.acquireClient("b"));
+
+        first.release();
+        assertNotNull(controller.acquireClient("a"));
+    }
+
+    @Test
+    void clientQuotaIsUnlimitedWhenDisabled() {
+        AdmissionController controller = new AdmissionController(10, 1, 10, 10, Duration.ofMinutes(1), 0);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(AdmissionController.ClientPermit.UNLIMITED, controller.acquireClient("a"));
+        }
+        assertEquals(0, controller.getInFlight());
+    }
+}
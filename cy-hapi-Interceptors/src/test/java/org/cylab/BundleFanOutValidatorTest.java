@@ -0,0 +1,138 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BundleFanOutValidatorTest {
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+    private static final String BUNDLE = """
+            {"resourceType":"Bundle","type":"collection","entry":[
+              {"fullUrl":"urn:uuid:1","resource":{"resourceType":"Patient","name":[{"family":"Chen"}]}},
+              {"fullUrl":"urn:uuid:2"},
+              {"resource":{"resourceType":"Observation","status":"final"}}
+            ]}""";
+
+    private final BundleFanOutValidator validator = new BundleFanOutValidator(FHIR_CONTEXT, null, Runnable::run, 1);
+
+    @Test
+    void splitsEntryResourcesKeepingTheirIndex() {
+        byte[] body = bytes(BUNDLE);
+
+        List<BundleFanOutValidator.Entry> entries = BundleFanOutValidator.split(body);
+
+        assertNotNull(entries);
+        assertEquals(2, entries.size());
+        assertEquals(0, entries.get(0).index());
+        assertEquals("Patient", entries.get(0).resourceType());
+        assertEquals("{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Chen\"}]}", text(body, entries.get(0)));
+        assertEquals(2, entries.get(1).index());
+        assertEquals("{\"resourceType\":\"Observation\",\"status\":\"final\"}", text(body, entries.get(1)));
+    }
+
+    @Test
+    void doesNotSplitOtherResourcesOrInvalidJson() {
+        assertNull(BundleFanOutValidator.split(bytes("{\"resourceType\":\"Patient\",\"entry\":[{\"resource\":{}}]}")));
+        assertNull(BundleFanOutValidator.split(bytes("<Bundle xmlns=\"http://hl7.org/fhir\"/>")));
+        assertNull(BundleFanOutValidator.split(bytes("{\"resourceType\":\"Bundle\",\"entry\":[")));
+    }
+
+    @Test
+    void mergesEntryOutcomesWithPathsRebasedIntoTheBundle() {
+        List<String> validated = Collections.synchronizedList(new ArrayList<>());
+        Function<byte[], ValidationResponseResult> entryValidation = entry -> {
+            String json = new String(entry, StandardCharsets.UTF_8);
+            validated.add(json);
+            return json.contains("Patient")
+                    ? outcome(Map.of("Patient.name[0].given", "Patient.name[0].given", "Patient", "name"))
+                    : outcome(Map.of("Observation.code", "Observation.code"));
+        };
+
+        ValidationResponseResult result = validator.validate(bytes(BUNDLE), entryValidation).join();
+
+        assertEquals(200, result.getStatus());
+        assertEquals(2, validated.size());
+        OperationOutcome merged = FHIR_CONTEXT.newJsonParser().parseResource(OperationOutcome.class, result.getBody());
+        List<String> expressions = merged.getIssue().stream()
+                .flatMap(issue -> issue.getExpression().stream())
+                .map(StringType::getValue)
+                .toList();
+        List<String> locations = merged.getIssue().stream()
+                .flatMap(issue -> issue.getLocation().stream())
+                .map(StringType::getValue)
+                .toList();
+        assertEquals(3, merged.getIssue().size());
+        assertTrue(expressions.containsAll(List.of(
+                "Bundle.entry[0].resource.name[0].given",
+                "Bundle.entry[0].resource",
+                "Bundle.entry[2].resource.code")));
+        // 不以 resource type 開頭的路徑直接接在 resource 之後
+        assertTrue(locations.containsAll(List.of(
+                "Bundle.entry[0].resource.name[0].given",
+                "Bundle.entry[0].resource.name",
+                "Bundle.entry[2].resource.code")));
+        // 各 entry 的 issue 依 entry 順序排列
+        assertEquals("Bundle.entry[2].resource.code", expressions.get(2));
+    }
+
+    @Test
+    void failsTheBundleWhenAnEntryFails() {
+        ValidationResponseResult result = validator.validate(bytes(BUNDLE), entry ->
+                new String(entry, StandardCharsets.UTF_8).contains("Observation")
+                        ? new ValidationResponseResult("validator down", ValidationResponseResult.STATUS_FAILED)
+                        : outcome(Map.of())).join();
+
+        assertEquals(ValidationResponseResult.STATUS_FAILED, result.getStatus());
+        assertEquals("Bundle.entry[2]: validator down", result.getBody());
+    }
+
+    @Test
+    void failsTheBundleWhenAnEntryAnswersWithoutAnOutcome() {
+        ValidationResponseResult result = validator.validate(bytes(BUNDLE), entry ->
+                new ValidationResponseResult("{\"resourceType\":\"Patient\"}", 200)).join();
+
+        assertEquals(ValidationResponseResult.STATUS_FAILED, result.getStatus());
+        assertTrue(result.getBody().startsWith("Bundle.entry[0]: "));
+    }
+
+    @Test
+    void leavesSmallBundlesToTheValidator() {
+        BundleFanOutValidator largeOnly = new BundleFanOutValidator(FHIR_CONTEXT, null, Runnable::run, 3);
+
+        assertNull(largeOnly.validate(bytes(BUNDLE), entry -> outcome(Map.of())));
+    }
+
+    /**
+     * Builds a validator response with one issue per expression, located at the mapped location.
+     */
+    private static ValidationResponseResult outcome(Map<String, String> locationsByExpression) {
+        OperationOutcome outcome = new OperationOutcome();
+        locationsByExpression.forEach((expression, location) -> outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.INVALID)
+                .addExpression(expression)
+                .addLocation(location));
+        return new ValidationResponseResult(FHIR_CONTEXT.newJsonParser().encodeResourceToString(outcome), 200);
+    }
+
+    private static String text(byte[] body, BundleFanOutValidator.Entry entry) {
+        return new String(body, entry.start(), entry.end() - entry.start(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,176 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InlineValueSetIndexTest {
+    private static final String LOINC = "http://loinc.org";
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private final InlineValueSetIndex index = new InlineValueSetIndex(1_000);
+
+    @Test
+    void answersMemberOnlyForActiveCodesOfTheCodeSystem() {
+        ParametersScan.Parameter valueSet = valueSet("""
+                {"include":[{"system":"http://loinc.org","concept":[
+                  {"code":"8480-6","display":"Systolic blood pressure"},
+                  {"code":"8462-4"},
+                  {"code":"1234-5"}]}]}""");
+        CodeSystemStub codeSystem = new CodeSystemStub()
+                .add(LOINC, "8480-6")
+                .add(LOINC, "8462-4", new IValidationSupport.StringConceptProperty("status", "deprecated"));
+
+        InlineValueSetIndex.Membership member = index.lookup(valueSet, LOINC, null, "8480-6", null, codeSystem);
+        assertNotNull(member);
+        assertTrue(member.member());
+        assertEquals("Systolic blood pressure", member.display());
+
+        // 已停用或 CodeSystem 中不存在的 code 交給伺服器判斷
+        assertNull(index.lookup(valueSet, LOINC, null, "8462-4", null, codeSystem));
+        assertNull(index.lookup(valueSet, LOINC, null, "1234-5", null, codeSystem));
+        assertEquals(List.of("8480-6", "8462-4", "1234-5"), codeSystem.lookups);
+    }
+
+    @Test
+    void treatsInactivePropertyAsInactive() {
+        ParametersScan.Parameter valueSet = valueSet("""
+                {"include":[{"system":"http://snomed.info/sct","concept":[{"code":"1"},{"code":"2"}]}]}""");
+        CodeSystemStub codeSystem = new CodeSystemStub()
+                .add(SNOMED, "1", new IValidationSupport.StringConceptProperty("inactive", "false"))
+                .add(SNOMED, "2", new IValidationSupport.StringConceptProperty("inactive", "true"));
+
+        assertTrue(index.lookup(valueSet, SNOMED, null, "1", null, codeSystem).member());
+        assertNull(index.lookup(valueSet, SNOMED, null, "2", null, codeSystem));
+    }
+
+    @Test
+    void leavesListedCodesToTheServerWithoutTerminology() {
+        ParametersScan.Parameter valueSet = valueSet("""
+                {"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6"}]}]}""");
+
+        assertNull(index.lookup(valueSet, LOINC, null, "8480-6", null, null));
+    }
+
+    @Test
+    void decidesNonMembershipFromTheComposeAlone() {
+        ParametersScan.Parameter valueSet = valueSet("""
+                {"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6"}]}],
+                 "exclude":[{"system":"http://loinc.org","concept":[{"code":"8462-4"}]}]}""");
+        CodeSystemStub codeSystem = new CodeSystemStub().add(LOINC, "8480-6").add(LOINC, "8462-4");
+
+        InlineValueSetIndex.Membership excluded = index.lookup(valueSet, LOINC, null, "8462-4", null, codeSystem);
+        assertFalse(excluded.member());
+        InlineValueSetIndex.Membership notListed = index.lookup(valueSet, LOINC, null, "9999-9", null, codeSystem);
+        assertFalse(notListed.member());
+        InlineValueSetIndex.Membership otherSystem = index.lookup(valueSet, SNOMED, null, "8480-6", null, codeSystem);
+        assertFalse(otherSystem.member());
+        assertTrue(codeSystem.lookups.isEmpty());
+    }
+
+    @Test
+    void infersTheSystemOfASingleSystemCompose() {
+        ParametersScan.Parameter valueSet = valueSet("""
+                {"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6"}]}]}""");
+        CodeSystemStub codeSystem = new CodeSystemStub().add(LOINC, "8480-6");
+
+        InlineValueSetIndex.Membership membership = index.lookup(valueSet, null, null, "8480-6", null, codeSystem);
+        assertTrue(membership.member());
+        assertEquals(LOINC, membership.system());
+    }
+
+    @Test
+    void cannotDecideOpenComposes() {
+        CodeSystemStub codeSystem = new CodeSystemStub().add(LOINC, "8480-6");
+
+        // 整個 code system、filter、version 與 valueSet import 都無法列舉
+        assertNull(index.lookup(valueSet("""
+                {"include":[{"system":"http://loinc.org"}]}"""), LOINC, null, "8480-6", null, codeSystem));
+        assertNull(index.lookup(valueSet("""
+                {"include":[{"system":"http://loinc.org","filter":[{"property":"CLASS","op":"=","value":"X"}]}]}"""),
+                LOINC, null, "8480-6", null, codeSystem));
+        assertNull(index.lookup(valueSet("""
+                {"include":[{"system":"http://loinc.org","version":"2.76","concept":[{"code":"8480-6"}]}]}"""),
+                LOINC, null, "8480-6", null, codeSystem));
+        assertNull(index.lookup(valueSet("""
+                {"include":[{"valueSet":["http://example.org/ValueSet/other"]}]}"""), LOINC, null, "8480-6", null, codeSystem));
+        assertNull(index.lookup(valueSet("""
+                {"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6"}]}],"inactive":true}"""),
+                LOINC, null, "8480-6", null, codeSystem));
+    }
+
+    @Test
+    void cannotDecideRequestedVersionsOrMismatchedDisplays() {
+        ParametersScan.Parameter valueSet = valueSet("""
+                {"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6","display":"Systolic blood pressure"}]}]}""");
+        CodeSystemStub codeSystem = new CodeSystemStub().add(LOINC, "8480-6");
+
+        assertNull(index.lookup(valueSet, LOINC, "2.76", "8480-6", null, codeSystem));
+        assertNull(index.lookup(valueSet, LOINC, null, "8480-6", "Diastolic blood pressure", codeSystem));
+    }
+
+    @Test
+    void compilesEachComposeOnce() {
+        String compose = """
+                {"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6"}]}]}""";
+        CodeSystemStub codeSystem = new CodeSystemStub().add(LOINC, "8480-6");
+
+        index.lookup(valueSet(compose), LOINC, null, "8480-6", null, codeSystem);
+        index.lookup(valueSet(compose), LOINC, null, "9999-9", null, codeSystem);
+
+        assertEquals(1, index.size());
+    }
+
+    private static ParametersScan.Parameter valueSet(String compose) {
+        String body = """
+                {"resourceType":"Parameters","parameter":[{"name":"valueSet","resource":\
+                {"resourceType":"ValueSet","compose":%s}}]}""".formatted(compose);
+        ParametersScan scan = ParametersScan.scan(body.getBytes(StandardCharsets.UTF_8));
+        assertNotNull(scan);
+        return scan.getFirst("valueSet");
+    }
+
+    private static final class CodeSystemStub implements IValidationSupport {
+        private final Map<String, List<BaseConceptProperty>> concepts = new HashMap<>();
+        private final List<String> lookups = new ArrayList<>();
+
+        CodeSystemStub add(String system, String code, BaseConceptProperty... properties) {
+            concepts.put(system + "|" + code, List.of(properties));
+            return this;
+        }
+
+        @Override
+        public LookupCodeResult lookupCode(ValidationSupportContext theValidationSupportContext, LookupCodeRequest theLookupCodeRequest) {
+            lookups.add(theLookupCodeRequest.getCode());
+            List<BaseConceptProperty> properties = concepts.get(theLookupCodeRequest.getSystem() + "|" + theLookupCodeRequest.getCode());
+            if (properties == null) {
+                return LookupCodeResult.notFound(theLookupCodeRequest.getSystem(), theLookupCodeRequest.getCode());
+            }
+            LookupCodeResult result = new LookupCodeResult()
+                    .setSearchedForSystem(theLookupCodeRequest.getSystem())
+                    .setSearchedForCode(theLookupCodeRequest.getCode())
+                    .setFound(true);
+            result.setProperties(new ArrayList<>(properties));
+            return result;
+        }
+
+        @Override
+        public FhirContext getFhirContext() {
+            return FhirContext.forR4Cached();
+        }
+    }
+}
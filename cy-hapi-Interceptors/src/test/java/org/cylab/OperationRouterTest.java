@@ -0,0 +1,191 @@
+package org.cylab;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OperationRouterTest {
+
+    @Test
+    void passesRequestsWithoutMatchingRoute() throws IOException {
+        List<String> calls = new ArrayList<>();
+        OperationRouter router = new OperationRouter(r -> r.route("ValueSet", "$validate-code", RequestTypeEnum.POST, recording(calls, "vs", true)));
+
+        ServletRequestDetails noOperation = requestDetails(null, null, RequestTypeEnum.GET);
+        ServletRequestDetails otherOperation = requestDetails("ValueSet", "$expand", RequestTypeEnum.POST);
+        ServletRequestDetails otherMethod = requestDetails("ValueSet", "$validate-code", RequestTypeEnum.GET);
+        ServletRequestDetails otherResource = requestDetails("CodeSystem", "$validate-code", RequestTypeEnum.POST);
+
+        for (ServletRequestDetails details : List.of(noOperation, otherOperation, otherMethod, otherResource)) {
+            assertTrue(router.onIncomingRequest(details, details.getServletRequest(), null));
+            assertTrue(details.getUserData().isEmpty());
+        }
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    void dispatchesByResourceOperationAndMethod() throws IOException {
+        List<String> calls = new ArrayList<>();
+        OperationRouter router = new OperationRouter(
+                r -> r.route("ValueSet", "$validate-code", RequestTypeEnum.POST, recording(calls, "valueSet", false)),
+                r -> r.route("CodeSystem", "$validate-code", RequestTypeEnum.POST, recording(calls, "codeSystem", false)),
+                r -> r.route(null, "$ready", RequestTypeEnum.GET, recording(calls, "ready", false)),
+                r -> r.route(OperationRouter.ANY_RESOURCE, "$validate", RequestTypeEnum.POST, recording(calls, "validate", false)));
+
+        dispatch(router, "CodeSystem", "$validate-code", RequestTypeEnum.POST);
+        dispatch(router, "ValueSet", "$validate-code", RequestTypeEnum.POST);
+        dispatch(router, null, "$ready", RequestTypeEnum.GET);
+        dispatch(router, "Patient", "$ready", RequestTypeEnum.GET);
+        dispatch(router, "Patient", "$validate", RequestTypeEnum.POST);
+        dispatch(router, null, "$validate", RequestTypeEnum.POST);
+
+        assertEquals(List.of("codeSystem", "valueSet", "ready", "validate", "validate"), calls);
+    }
+
+    @Test
+    void sharesOneRequestAcrossHandlersUntilOneAnswers() throws IOException {
+        List<OperationRequest> seen = new ArrayList<>();
+        List<String> calls = new ArrayList<>();
+        OperationRouter router = new OperationRouter(
+                r -> r.route("ValueSet", "$validate-code", RequestTypeEnum.POST, request -> {
+                    seen.add(request);
+                    return recording(calls, "first", true).handle(request);
+                }),
+                r -> {
+                    r.route(OperationRouter.ANY_RESOURCE, "$validate-code", RequestTypeEnum.POST, request -> {
+                        seen.add(request);
+                        return recording(calls, "second", false).handle(request);
+                    });
+                    r.route("ValueSet", "$validate-code", RequestTypeEnum.POST, recording(calls, "third", true));
+                });
+
+        ServletRequestDetails details = requestDetails("ValueSet", "$validate-code", RequestTypeEnum.POST);
+        assertFalse(router.onIncomingRequest(details, details.getServletRequest(), null));
+
+        assertEquals(List.of("first", "second"), calls);
+        assertEquals(2, seen.size());
+        assertSame(seen.get(0), seen.get(1));
+    }
+
+    @Test
+    void buffersTheBodyOnceForHandlersAndServer() throws IOException {
+        byte[] body = "{\"resourceType\":\"Parameters\"}".getBytes(StandardCharsets.UTF_8);
+        List<byte[]> bodies = new ArrayList<>();
+        OperationRouter router = new OperationRouter(
+                r -> r.route("ValueSet", "$validate-code", RequestTypeEnum.POST, request -> {
+                    bodies.add(request.getBody());
+                    return true;
+                }),
+                r -> r.route("ValueSet", "$validate-code", RequestTypeEnum.POST, request -> {
+                    bodies.add(request.getBody());
+                    return true;
+                }));
+
+        HttpServletRequest servletRequest = ServletStubs.request("application/fhir+json", body);
+        ServletRequestDetails details = requestDetails("ValueSet", "$validate-code", RequestTypeEnum.POST, servletRequest);
+        assertTrue(router.onIncomingRequest(details, servletRequest, null));
+
+        assertEquals(2, bodies.size());
+        assertSame(bodies.get(0), bodies.get(1));
+        assertArrayEquals(body, bodies.get(0));
+        // server 讀取的是已緩衝的 request
+        assertTrue(details.getServletRequest() instanceof ModifiableHttpServletRequest);
+        assertArrayEquals(body, details.getServletRequest().getInputStream().readAllBytes());
+    }
+
+    @Test
+    void releasesSpilledBodyWhenProcessingCompletes() throws IOException {
+        byte[] body = new byte[2 * 1024 * 1024];
+        Arrays.fill(body, (byte) ' ');
+        OperationRouter router = new OperationRouter(r -> r.route(null, "$validate", RequestTypeEnum.POST, request -> {
+            request.getBufferedRequest();
+            return true;
+        }));
+
+        HttpServletRequest servletRequest = ServletStubs.request("application/fhir+json", body);
+        ServletRequestDetails details = requestDetails(null, "$validate", RequestTypeEnum.POST, servletRequest);
+        assertTrue(router.onIncomingRequest(details, servletRequest, null));
+        HttpServletRequest buffered = details.getServletRequest();
+        assertEquals(body.length, buffered.getInputStream().readAllBytes().length);
+
+        router.onProcessingCompleted(details);
+
+        assertThrows(IOException.class, buffered::getInputStream);
+    }
+
+    @Test
+    void readsSpilledBodyIntoMemoryOnce() throws IOException {
+        byte[] body = new byte[2 * 1024 * 1024];
+        Arrays.fill(body, (byte) ' ');
+        List<Object> seen = new ArrayList<>();
+        OperationRouter router = new OperationRouter(r -> r.route(null, "$validate", RequestTypeEnum.POST, request -> {
+            seen.add(request.getBodyFile());
+            try (InputStream in = request.openBody()) {
+                seen.add(in.readAllBytes().length);
+            }
+            seen.add(request.getBody());
+            seen.add(request.getBody());
+            return true;
+        }));
+
+        HttpServletRequest servletRequest = ServletStubs.request("application/fhir+json", body);
+        ServletRequestDetails details = requestDetails(null, "$validate", RequestTypeEnum.POST, servletRequest);
+        assertTrue(router.onIncomingRequest(details, servletRequest, null));
+
+        assertNotNull(seen.get(0));
+        assertEquals(body.length, seen.get(1));
+        assertSame(seen.get(2), seen.get(3));
+        assertArrayEquals(body, (byte[]) seen.get(2));
+    }
+
+    @Test
+    void rejectsRoutesAfterConstruction() {
+        List<OperationRouter> routers = new ArrayList<>();
+        OperationRouter router = new OperationRouter(routers::add);
+
+        assertSame(router, routers.get(0));
+        assertThrows(IllegalStateException.class,
+                () -> router.route(null, "$late", RequestTypeEnum.GET, request -> true));
+    }
+
+    private static OperationRouter.Handler recording(List<String> calls, String name, boolean proceed) {
+        return request -> {
+            calls.add(name);
+            return proceed;
+        };
+    }
+
+    private static void dispatch(OperationRouter router, String resourceName, String operation, RequestTypeEnum method) throws IOException {
+        ServletRequestDetails details = requestDetails(resourceName, operation, method);
+        router.onIncomingRequest(details, details.getServletRequest(), null);
+    }
+
+    private static ServletRequestDetails requestDetails(String resourceName, String operation, RequestTypeEnum method) {
+        return requestDetails(resourceName, operation, method, ServletStubs.request(null, null));
+    }
+
+    private static ServletRequestDetails requestDetails(String resourceName, String operation, RequestTypeEnum method, HttpServletRequest servletRequest) {
+        ServletRequestDetails details = new ServletRequestDetails();
+        details.setResourceName(resourceName);
+        details.setOperation(operation);
+        details.setRequestType(method);
+        details.setServletRequest(servletRequest);
+        return details;
+    }
+}
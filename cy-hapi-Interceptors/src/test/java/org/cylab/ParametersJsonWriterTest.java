@@ -0,0 +1,91 @@
+package org.cylab;
+
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.cylab.ParametersScanTest.assertSameParameters;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class ParametersJsonWriterTest {
+
+    @Test
+    void writesEmptyParameters() {
+        assertSameParameters(new Parameters(), new ParametersJsonWriter().toByteArray());
+    }
+
+    @Test
+    void escapesPrimitiveValues() {
+        byte[] json = new ParametersJsonWriter()
+                .addParameter("url", "valueUri", "http://example.org/ValueSet/測試")
+                .addParameter("message", "valueString", "代碼 \"mg/dL\" 不在\tValueSet\\中\n😀")
+                .toByteArray();
+
+        Parameters expected = new Parameters();
+        expected.addParameter().setName("url").setValue(new UriType("http://example.org/ValueSet/測試"));
+        expected.addParameter().setName("message").setValue(new StringType("代碼 \"mg/dL\" 不在\tValueSet\\中\n😀"));
+        assertSameParameters(expected, json);
+    }
+
+    @Test
+    void copiesScannedParametersByteForByte() {
+        String body = """
+                {"resourceType":"Parameters","parameter":[
+                  {"name":"url","valueUri":"http://example.org/ValueSet/測試"},
+                  {"name":"coding","valueCoding":{"system":"http://loinc.org","code":"8480-6","display":"收縮壓 \\"SBP\\""}},
+                  {"name":"coding","valueCoding":{"system":"http://loinc.org","code":"8462-4"}},
+                  {"name":"codeableConcept","valueCodeableConcept":{"coding":[{"system":"http://unitsofmeasure.org","code":"mm[Hg]"}],"text":"血壓"}},
+                  {"name":"valueSet","resource":{"resourceType":"ValueSet","url":"http://example.org/ValueSet/inline",\
+                "compose":{"include":[{"system":"http://loinc.org","concept":[{"code":"8480-6","display":"Systolic"}]}]}}}
+                ]}""";
+        ParametersScan scan = ParametersScan.scan(body.getBytes(StandardCharsets.UTF_8));
+        assertNotNull(scan);
+
+        ParametersJsonWriter writer = new ParametersJsonWriter();
+        scan.getParameters().forEach(writer::addParameter);
+        writer.addParameter("code", "valueCode", "8480-6");
+
+        Parameters expected = new Parameters();
+        expected.addParameter().setName("url").setValue(new UriType("http://example.org/ValueSet/測試"));
+        expected.addParameter().setName("coding").setValue(new Coding("http://loinc.org", "8480-6", "收縮壓 \"SBP\""));
+        expected.addParameter().setName("coding").setValue(new Coding("http://loinc.org", "8462-4", null));
+        expected.addParameter().setName("codeableConcept").setValue(new CodeableConcept()
+                .addCoding(new Coding("http://unitsofmeasure.org", "mm[Hg]", null))
+                .setText("血壓"));
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl("http://example.org/ValueSet/inline");
+        valueSet.getCompose().addInclude().setSystem("http://loinc.org").addConcept().setCode("8480-6").setDisplay("Systolic");
+        expected.addParameter().setName("valueSet").setResource(valueSet);
+        expected.addParameter().setName("code").setValue(new CodeType("8480-6"));
+        assertSameParameters(expected, writer.toByteArray());
+    }
+
+    @Test
+    void writesSelectedScannedParameters() {
+        ParametersScan scan = ParametersScan.scan("""
+                {"resourceType":"Parameters","parameter":[
+                  {"name":"url","valueUri":"http://unitsofmeasure.org"},
+                  {"name":"coding","valueCoding":{"system":"http://unitsofmeasure.org","code":"mg"}},
+                  {"name":"coding","valueCoding":{"system":"http://unitsofmeasure.org","code":"kg"}}
+                ]}""".getBytes(StandardCharsets.UTF_8));
+        assertNotNull(scan);
+
+        // 改寫請求時只保留部分參數, 例如 url 與其中一個 coding
+        byte[] json = new ParametersJsonWriter()
+                .addParameter(scan.getFirst("url"))
+                .addParameter(scan.getParameters().get(2))
+                .toByteArray();
+
+        Parameters expected = new Parameters();
+        expected.addParameter().setName("url").setValue(new UriType("http://unitsofmeasure.org"));
+        expected.addParameter().setName("coding").setValue(new Coding("http://unitsofmeasure.org", "kg", null));
+        assertSameParameters(expected, json);
+    }
+}
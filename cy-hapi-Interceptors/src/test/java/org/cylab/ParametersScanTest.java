@@ -0,0 +1,203 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParametersScanTest {
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+    @Test
+    void scansPrimitiveAndCodingParameters() {
+        ParametersScan scan = scan("""
+                {"resourceType":"Parameters","parameter":[
+                  {"name":"url","valueUri":"http://loinc.org"},
+                  {"name":"code","valueCode":"8480-6"},
+                  {"name":"coding","valueCoding":{"system":"http://loinc.org","version":"2.77","code":"8480-6","display":"Systolic blood pressure"}}
+                ]}""");
+
+        assertEquals(List.of("url", "code", "coding"), scan.getParameters().stream().map(ParametersScan.Parameter::getName).toList());
+        assertEquals("valueUri", scan.getFirst("url").getValueField());
+        assertEquals("http://loinc.org", scan.getFirst("url").getValue());
+        assertEquals("8480-6", scan.getFirst("code").getValue());
+
+        ParametersScan.Parameter coding = scan.getFirst("coding");
+        assertEquals("valueCoding", coding.getValueField());
+        assertEquals("http://loinc.org", coding.getSystem());
+        assertEquals("2.77", coding.getVersion());
+        assertEquals("8480-6", coding.getCode());
+        assertEquals("Systolic blood pressure", coding.getDisplay());
+        assertNull(scan.getFirst("valueSet"));
+    }
+
+    @Test
+    void decodesEscapedStringsAndUnicode() {
+        String display = "血壓 \"收縮壓\" \\ mm[Hg]\n😀";
+        ParametersScan scan = scan("""
+                {"resourceType":"Parameters","parameter":[
+                  {"name":"display","valueString":"\\u8840\\u58d3 \\"收縮壓\\" \\\\ mm[Hg]\\n😀"},
+                  {"name":"coding","valueCoding":{"system":"http://example.org/血壓","code":"é"}}
+                ]}""");
+
+        assertEquals(display, scan.getFirst("display").getValue());
+        // 多位元組字元之後的位置仍以 byte 計算
+        ParametersScan.Parameter coding = scan.getFirst("coding");
+        assertEquals("http://example.org/血壓", coding.getSystem());
+        assertEquals("é", coding.getCode());
+        assertEquals("{\"system\":\"http://example.org/血壓\",\"code\":\"é\"}", rawValue(coding));
+    }
+
+    @Test
+    void keepsRepeatedParametersInOrder() {
+        ParametersScan scan = scan("""
+                {"resourceType":"Parameters","parameter":[
+                  {"name":"coding","valueCoding":{"system":"http://unitsofmeasure.org","code":"mg"}},
+                  {"name":"url","valueUri":"http://unitsofmeasure.org"},
+                  {"name":"coding","valueCoding":{"system":"http://unitsofmeasure.org","code":"kg"}},
+                  {"name":"codeableConcept","valueCodeableConcept":{"coding":[
+                    {"system":"http://unitsofmeasure.org","code":"cm"},
+                    {"system":"http://unitsofmeasure.org","code":"mm","display":"millimeter"}]}}
+                ]}""");
+
+        assertEquals(4, scan.getParameters().size());
+        assertEquals("mg", scan.getFirst("coding").getCode());
+        assertEquals(List.of("mg", "kg"), scan.getParameters().stream()
+                .filter(p -> "coding".equals(p.getName()))
+                .map(ParametersScan.Parameter::getCode)
+                .toList());
+        assertEquals(List.of(
+                new ParametersScan.Coding("http://unitsofmeasure.org", "cm", null, null),
+                new ParametersScan.Coding("http://unitsofmeasure.org", "mm", null, "millimeter")
+        ), scan.getFirst("codeableConcept").getCodings());
+    }
+
+    @Test
+    void scansNestedResourceValue() {
+        String valueSet = """
+                {"resourceType":"ValueSet","url":"http://example.org/ValueSet/vitals",\
+                "extension":[{"url":"http://example.org/nested","valueString":"ignored"}],\
+                "compose":{"include":[{"system":"http://loinc.org"},\
+                {"system":"http://snomed.info/sct","filter":[{"property":"concept","op":"is-a","value":"1"}]},\
+                {"valueSet":["http://example.org/ValueSet/other"]}],\
+                "exclude":[{"system":"http://loinc.org","concept":[{"code":"1-8"}]}]}}""";
+        ParametersScan scan = scan("""
+                {"resourceType":"Parameters","parameter":[{"name":"valueSet","resource":%s},{"name":"code","valueCode":"8480-6"}]}"""
+                .formatted(valueSet));
+
+        ParametersScan.Parameter inline = scan.getFirst("valueSet");
+        assertTrue(inline.isResource());
+        assertEquals("ValueSet", inline.getResourceType());
+        assertEquals("http://example.org/ValueSet/vitals", inline.getResourceUrl());
+        assertEquals(List.of("http://loinc.org", "http://snomed.info/sct"), inline.getComposeSystems());
+        assertEquals(List.of("http://loinc.org"), inline.getUnrestrictedComposeSystems());
+        assertTrue(inline.hasComposeExclude());
+        assertEquals(valueSet, rawValue(inline));
+        assertEquals("8480-6", scan.getFirst("code").getValue());
+
+        ValueSet parsed = FHIR_CONTEXT.newJsonParser().parseResource(ValueSet.class, rawValue(inline));
+        ValueSet.ValueSetComposeComponent compose = FHIR_CONTEXT.newJsonParser().parseResource(ValueSet.class,
+                "{\"resourceType\":\"ValueSet\",\"compose\":" + new String(inline.getRawCompose(), StandardCharsets.UTF_8) + "}").getCompose();
+        assertTrue(parsed.getCompose().equalsDeep(compose));
+    }
+
+    @Test
+    void digestsIdenticalResourcesAlike() {
+        String resource = "{\"resourceType\":\"ValueSet\",\"compose\":{\"include\":[{\"system\":\"http://loinc.org\"}]}}";
+        ParametersScan first = scan("{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"valueSet\",\"resource\":" + resource + "}]}");
+        ParametersScan second = scan("{\"parameter\":[{\"name\":\"code\",\"valueCode\":\"x\"},{\"name\":\"valueSet\",\"resource\":" + resource + "}],\"resourceType\":\"Parameters\"}");
+
+        assertEquals(first.getFirst("valueSet").digestRawValue(), second.getFirst("valueSet").digestRawValue());
+        assertEquals(first.getFirst("valueSet").digestCompose(), second.getFirst("valueSet").digestCompose());
+    }
+
+    @Test
+    void rejectsOtherResourcesAndMalformedJson() {
+        assertNull(ParametersScan.scan("{\"resourceType\":\"Patient\",\"parameter\":[]}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(ParametersScan.scan("{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"code\"".getBytes(StandardCharsets.UTF_8)));
+        assertNull(ParametersScan.scan("<Parameters xmlns=\"http://hl7.org/fhir\"/>".getBytes(StandardCharsets.UTF_8)));
+        assertNotNull(ParametersScan.scan("{\"resourceType\":\"Parameters\"}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void withParameterAppendsToParameters() {
+        ParametersScan scan = scan("""
+                {"resourceType":"Parameters","parameter":[
+                  {"name":"code","valueCode":"mg/dL"},
+                  {"name":"valueSet","resource":{"resourceType":"ValueSet","compose":{"include":[{"system":"http://unitsofmeasure.org"}]}}}
+                ],"meta":{"tag":[{"code":"after-parameters"}]}}""");
+
+        Parameters expected = new Parameters();
+        expected.getMeta().addTag().setCode("after-parameters");
+        expected.addParameter().setName("code").setValue(new CodeType("mg/dL"));
+        ValueSet valueSet = new ValueSet();
+        valueSet.getCompose().addInclude().setSystem("http://unitsofmeasure.org");
+        expected.addParameter().setName("valueSet").setResource(valueSet);
+        expected.addParameter().setName("url").setValue(new UriType("http://example.org/ValueSet/測試?a=\"b\""));
+
+        assertSameParameters(expected, scan.withParameter("url", "valueUri", "http://example.org/ValueSet/測試?a=\"b\""));
+    }
+
+    @Test
+    void withParameterOnEmptyParameterArray() {
+        ParametersScan scan = scan("{\"resourceType\":\"Parameters\",\"parameter\":[]}");
+
+        Parameters expected = new Parameters();
+        expected.addParameter().setName("display").setValue(new StringType("line\nbreak \\ 😀"));
+
+        assertSameParameters(expected, scan.withParameter("display", "valueString", "line\nbreak \\ 😀"));
+    }
+
+    @Test
+    void withParameterRoundTripsTwice() {
+        byte[] once = scan("{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"coding\",\"valueCoding\":{\"system\":\"http://loinc.org\",\"code\":\"8480-6\"}}]}")
+                .withParameter("url", "valueUri", "http://loinc.org");
+        byte[] twice = ParametersScan.scan(once).withParameter("code", "valueCode", "8462-4");
+
+        Parameters expected = new Parameters();
+        expected.addParameter().setName("coding").setValue(new Coding("http://loinc.org", "8480-6", null));
+        expected.addParameter().setName("url").setValue(new UriType("http://loinc.org"));
+        expected.addParameter().setName("code").setValue(new CodeType("8462-4"));
+        assertSameParameters(expected, twice);
+    }
+
+    @Test
+    void withParameterRequiresParameterArray() {
+        ParametersScan scan = scan("{\"resourceType\":\"Parameters\"}");
+
+        assertThrows(IllegalStateException.class, () -> scan.withParameter("url", "valueUri", "http://loinc.org"));
+    }
+
+    private static ParametersScan scan(String json) {
+        ParametersScan scan = ParametersScan.scan(json.getBytes(StandardCharsets.UTF_8));
+        assertNotNull(scan);
+        return scan;
+    }
+
+    private static String rawValue(ParametersScan.Parameter parameter) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parameter.writeRawValue(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    static void assertSameParameters(Parameters expected, byte[] actual) {
+        IParser parser = FHIR_CONTEXT.newJsonParser();
+        Parameters parsed = parser.parseResource(Parameters.class, new String(actual, StandardCharsets.UTF_8));
+        assertEquals(parser.encodeResourceToString(expected), parser.encodeResourceToString(parsed));
+    }
+}
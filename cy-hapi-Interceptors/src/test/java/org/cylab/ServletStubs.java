@@ -0,0 +1,81 @@
+package org.cylab;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Minimal servlet objects for tests; methods that are not stubbed return {@code null}, {@code 0} or {@code false}.
+ */
+final class ServletStubs {
+    private ServletStubs() {
+    }
+
+    static HttpServletRequest request(String contentType, byte[] body) {
+        return request(contentType, body, Map.of());
+    }
+
+    static HttpServletRequest request(String contentType, byte[] body, Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getContentType" -> contentType;
+                    case "getContentLength" -> body != null ? body.length : -1;
+                    case "getContentLengthLong" -> body != null ? (long) body.length : -1L;
+                    case "getInputStream" -> inputStream(body != null ? body : new byte[0]);
+                    case "getHeader" -> headers.get((String) args[0]);
+                    case "getRemoteAddr" -> "127.0.0.1";
+                    case "toString" -> "HttpServletRequest stub";
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> defaultValue(method.getReturnType());
+                });
+    }
+
+    private static ServletInputStream inputStream(byte[] body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,163 @@
+package org.cylab;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicReference<String> firstResult = new AtomicReference<>();
+        AtomicReference<String> secondResult = new AtomicReference<>();
+
+        Thread first = new Thread(() -> firstResult.set(singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(finish);
+            return new String("result");
+        })));
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Thread second = new Thread(() -> secondResult.set(singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            return "second";
+        })));
+        second.start();
+        awaitBlocked(second);
+        finish.countDown();
+        first.join(5_000);
+        second.join(5_000);
+
+        assertEquals(1, calls.get());
+        assertEquals("result", firstResult.get());
+        assertSame(firstResult.get(), secondResult.get());
+    }
+
+    @Test
+    void releasesTheKeyOnceTheCallFinishes() {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals("1", singleFlight.execute("key", () -> String.valueOf(calls.incrementAndGet())));
+        assertEquals("2", singleFlight.execute("key", () -> String.valueOf(calls.incrementAndGet())));
+    }
+
+    @Test
+    void waitingCallersReceiveTheFailure() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicReference<Throwable> secondFailure = new AtomicReference<>();
+
+        Thread first = new Thread(() -> {
+            try {
+                singleFlight.execute("key", () -> {
+                    started.countDown();
+                    await(finish);
+                    throw new IllegalStateException("validator down");
+                });
+            } catch (IllegalStateException e) {
+                // 預期的失敗
+            }
+        });
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Thread second = new Thread(() -> {
+            try {
+                singleFlight.execute("key", () -> "second");
+            } catch (RuntimeException e) {
+                secondFailure.set(e);
+            }
+        });
+        second.start();
+        awaitBlocked(second);
+        finish.countDown();
+        first.join(5_000);
+        second.join(5_000);
+
+        assertTrue(secondFailure.get() instanceof IllegalStateException);
+        assertEquals("validator down", secondFailure.get().getMessage());
+        // 失敗後 key 已釋放, 下一次呼叫重新執行
+        assertEquals("retry", singleFlight.execute("key", () -> "retry"));
+    }
+
+    @Test
+    void callsWithoutKeyAreNeverShared() {
+        AtomicInteger calls = new AtomicInteger();
+
+        singleFlight.execute(null, () -> String.valueOf(calls.incrementAndGet()));
+        singleFlight.execute(null, () -> String.valueOf(calls.incrementAndGet()));
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void asyncCallersShareTheFutureUntilItCompletes() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<String> second = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("second");
+        });
+
+        assertSame(first, second);
+        assertFalse(first.isDone());
+        pending.complete("result");
+        assertEquals("result", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+
+        CompletableFuture<String> third = singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("third"));
+        assertEquals("third", third.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void asyncSupplierFailureCompletesTheSharedFuture() {
+        CompletableFuture<String> failed = singleFlight.executeAsync("key", () -> {
+            throw new IllegalStateException("rejected");
+        });
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals("next", singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("next")).join());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the thread is parked, i.e. waiting for the call it joined.
+     */
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+}
@@ -0,0 +1,152 @@
+package org.cylab;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TerminologyResultCacheTest {
+    private final TerminologyResultCache cache = new TerminologyResultCache(100, Duration.ofMinutes(10), Duration.ofMinutes(1));
+
+    @Test
+    void keysValueSetRequestsByCodingAndValueSet() {
+        TerminologyResultCache.Key key = key("ValueSet", """
+                {"name":"url","valueUri":"http://example.org/ValueSet/vitals"},
+                {"name":"system","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"8480-6"}""");
+        TerminologyResultCache.Key fromCoding = key("ValueSet", """
+                {"name":"url","valueUri":"http://example.org/ValueSet/vitals"},
+                {"name":"coding","valueCoding":{"system":"http://loinc.org","code":"8480-6"}}""");
+
+        assertNotNull(key);
+        assertEquals(key, fromCoding);
+        assertEquals("http://loinc.org", key.system());
+        assertEquals("http://example.org/ValueSet/vitals", key.url());
+        assertNotEquals(key, key("ValueSet", """
+                {"name":"url","valueUri":"http://example.org/ValueSet/other"},
+                {"name":"system","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"8480-6"}"""));
+    }
+
+    @Test
+    void keysInlineResourcesByTheirContent() {
+        TerminologyResultCache.Key first = key("ValueSet", """
+                {"name":"code","valueCode":"8480-6"},
+                {"name":"valueSet","resource":{"resourceType":"ValueSet","status":"active"}}""");
+        TerminologyResultCache.Key same = key("ValueSet", """
+                {"name":"code","valueCode":"8480-6"},
+                {"name":"valueSet","resource":{"resourceType":"ValueSet","status":"active"}}""");
+        TerminologyResultCache.Key other = key("ValueSet", """
+                {"name":"code","valueCode":"8480-6"},
+                {"name":"valueSet","resource":{"resourceType":"ValueSet","status":"draft"}}""");
+
+        assertNotNull(first.resourceHash());
+        assertEquals(first, same);
+        assertNotEquals(first, other);
+    }
+
+    @Test
+    void doesNotKeyRequestsWithOtherOrRepeatedParameters() {
+        assertNull(key("ValueSet", """
+                {"name":"url","valueUri":"http://example.org/ValueSet/vitals"},
+                {"name":"code","valueCode":"8480-6"},
+                {"name":"displayLanguage","valueCode":"zh-TW"}"""));
+        assertNull(key("ValueSet", """
+                {"name":"code","valueCode":"8480-6"},
+                {"name":"code","valueCode":"8462-4"}"""));
+        assertNull(key("CodeSystem", """
+                {"name":"url","valueUri":"http://loinc.org"},
+                {"name":"systemVersion","valueString":"2.77"},
+                {"name":"code","valueCode":"8480-6"}"""));
+        assertNull(key("ValueSet", """
+                {"name":"url","valueUri":"http://example.org/ValueSet/vitals"}"""));
+    }
+
+    @Test
+    void returnsCopiesOfPositiveAndNegativeResults() {
+        TerminologyResultCache.Key valid = key("CodeSystem", """
+                {"name":"url","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"8480-6"}""");
+        TerminologyResultCache.Key invalid = key("CodeSystem", """
+                {"name":"url","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"0000-0"}""");
+        Parameters validResponse = response(true);
+
+        cache.put(valid, validResponse, cache.getGeneration());
+        cache.put(invalid, response(false), cache.getGeneration());
+
+        Parameters cached = cache.get(valid);
+        assertNotSame(validResponse, cached);
+        assertTrue(((BooleanType) cached.getParameter("result").getValue()).booleanValue());
+        // 修改取得的結果不影響快取內容
+        cached.getParameter().clear();
+        assertTrue(((BooleanType) cache.get(valid).getParameter("result").getValue()).booleanValue());
+        assertFalse(((BooleanType) cache.get(invalid).getParameter("result").getValue()).booleanValue());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void dropsResponsesComputedBeforeAClear() {
+        TerminologyResultCache.Key key = key("CodeSystem", """
+                {"name":"url","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"8480-6"}""");
+
+        // 查詢開始後 CodeSystem 被更新, 舊的結果不可放入快取
+        long generation = cache.getGeneration();
+        cache.clear();
+        cache.put(key, response(true), generation);
+        assertNull(cache.get(key));
+
+        cache.put(key, response(true), cache.getGeneration());
+        assertNotNull(cache.get(key));
+    }
+
+    @Test
+    void clearDropsEveryEntry() {
+        TerminologyResultCache.Key key = key("CodeSystem", """
+                {"name":"url","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"8480-6"}""");
+        cache.put(key, response(true), cache.getGeneration());
+
+        cache.clear();
+
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void storesNothingWhenDisabled() {
+        TerminologyResultCache disabled = new TerminologyResultCache(0, Duration.ofMinutes(10), Duration.ofMinutes(1));
+        TerminologyResultCache.Key key = key("CodeSystem", """
+                {"name":"url","valueUri":"http://loinc.org"},
+                {"name":"code","valueCode":"8480-6"}""");
+
+        disabled.put(key, response(true), disabled.getGeneration());
+
+        assertNull(disabled.get(key));
+    }
+
+    private static TerminologyResultCache.Key key(String resourceName, String parameters) {
+        String body = """
+                {"resourceType":"Parameters","parameter":[%s]}""".formatted(parameters);
+        ParametersScan scan = ParametersScan.scan(body.getBytes(StandardCharsets.UTF_8));
+        assertNotNull(scan);
+        return TerminologyResultCache.createKey(resourceName, scan);
+    }
+
+    private static Parameters response(boolean result) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter("result", new BooleanType(result));
+        return parameters;
+    }
+}
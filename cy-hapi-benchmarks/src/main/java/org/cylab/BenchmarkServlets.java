@@ -0,0 +1,258 @@
+package org.cylab;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory servlet requests and responses for driving the interceptors without a servlet container.
+ * <p>
+ * Only the methods the interceptors call are implemented; everything else falls through to a proxy returning
+ * {@code null}, zero or {@code false}.
+ */
+final class BenchmarkServlets {
+    private static final HttpServletRequest EMPTY_REQUEST = emptyProxy(HttpServletRequest.class);
+    private static final HttpServletResponse EMPTY_RESPONSE = emptyProxy(HttpServletResponse.class);
+
+    private BenchmarkServlets() {
+    }
+
+    /**
+     * @param declareLength whether the request declares its {@code Content-Length}, as opposed to a chunked upload
+     */
+    static HttpServletRequest request(String contentType, byte[] body, boolean declareLength, Map<String, String> headers) {
+        return new BenchmarkRequest(contentType, body, declareLength, headers);
+    }
+
+    static HttpServletRequest request(String contentType, byte[] body) {
+        return request(contentType, body, true, Map.of());
+    }
+
+    static BenchmarkResponse response() {
+        return new BenchmarkResponse();
+    }
+
+    static ServletRequestDetails requestDetails(RestfulServer server,
+                                                String resourceName,
+                                                String operation,
+                                                RequestTypeEnum method,
+                                                HttpServletRequest request) {
+        ServletRequestDetails requestDetails = new ServletRequestDetails();
+        requestDetails.setServer(server);
+        requestDetails.setResourceName(resourceName);
+        requestDetails.setOperation(operation);
+        requestDetails.setRequestType(method);
+        requestDetails.setRequestPath(resourceName != null ? resourceName + "/" + operation : operation);
+        requestDetails.setServletRequest(request);
+        return requestDetails;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T emptyProxy(Class<T> type) {
+        return (T) Proxy.newProxyInstance(BenchmarkServlets.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == Enumeration.class) {
+                return Collections.emptyEnumeration();
+            }
+            return null;
+        });
+    }
+
+    private static final class BenchmarkRequest extends HttpServletRequestWrapper {
+        private final String contentType;
+        private final byte[] body;
+        private final boolean declareLength;
+        private final Map<String, String> headers;
+
+        BenchmarkRequest(String contentType, byte[] body, boolean declareLength, Map<String, String> headers) {
+            super(EMPTY_REQUEST);
+            this.contentType = contentType;
+            this.body = body;
+            this.declareLength = declareLength;
+            this.headers = headers;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return StandardCharsets.UTF_8.name();
+        }
+
+        @Override
+        public int getContentLength() {
+            return declareLength ? body.length : -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return declareLength ? body.length : -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            String value = headers.get(name);
+            return value != null ? Collections.enumeration(List.of(value)) : Collections.emptyEnumeration();
+        }
+
+        @Override
+        public String getRemoteAddr() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                }
+            };
+        }
+    }
+
+    /**
+     * Collects the status, headers and body written by an interceptor.
+     */
+    static final class BenchmarkResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+        private final Map<String, String> headers = new HashMap<>();
+        private int status;
+        private PrintWriter writer;
+
+        BenchmarkResponse() {
+            super(EMPTY_RESPONSE);
+        }
+
+        byte[] getBody() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return body.toByteArray();
+        }
+
+        int getBodyLength() {
+            return body.size();
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.merge(name, value, (previous, added) -> previous + ", " + added);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public void setContentType(String type) {
+            headers.put("Content-Type", type);
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    body.write(b, off, len);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+            };
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+            }
+            return writer;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validating a code against a common code system with {@link CommonCodeValidator}, for valid and unknown codes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommonCodeValidatorBenchmark {
+
+    /**
+     * A code system and code separated by {@code #}.
+     */
+    @Param({
+            CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL + "#mg/dL",
+            CommonCodeSystemsTerminologyService.UCUM_CODESYSTEM_URL + "#not-a-unit",
+            CommonCodeSystemsTerminologyService.LANGUAGES_CODESYSTEM_URL + "#zh-TW",
+            CommonCodeSystemsTerminologyService.MIMETYPES_CODESYSTEM_URL + "#application/fhir+json",
+            CommonCodeSystemsTerminologyService.CURRENCIES_CODESYSTEM_URL + "#TWD"
+    })
+    String systemAndCode;
+
+    private CommonCodeValidator validator;
+    private String system;
+    private String code;
+
+    @Setup
+    public void setUp() {
+        validator = new CommonCodeValidator(FhirContext.forR4Cached());
+        int separator = systemAndCode.indexOf('#');
+        system = systemAndCode.substring(0, separator);
+        code = systemAndCode.substring(separator + 1);
+    }
+
+    @Benchmark
+    public IValidationSupport.CodeValidationResult validateCode() {
+        return validator.validateCode(system, code);
+    }
+}
@@ -0,0 +1,54 @@
+package org.cylab;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffering a request body with {@link ModifiableHttpServletRequest}, with and without a declared
+ * {@code Content-Length}. The largest size is above the default {@code REQUEST_BODY_MEMORY_LIMIT} and measures
+ * spilling to a temporary file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBufferingBenchmark {
+
+    @Param({"1024", "65536", "2097152"})
+    int bodySize;
+
+    @Param({"true", "false"})
+    boolean declareLength;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+    }
+
+    @Benchmark
+    public byte[] bufferAndRead() throws IOException {
+        HttpServletRequest request = BenchmarkServlets.request("application/fhir+json", body, declareLength, Map.of());
+        ModifiableHttpServletRequest buffered = new ModifiableHttpServletRequest(request);
+        return buffered.getInputStream().readAllBytes();
+    }
+}
@@ -0,0 +1,100 @@
+package org.cylab;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP server standing in for the Inferno validator: {@code POST /validate} drains the request, waits a fixed
+ * time and answers {@code 200} with a canned OperationOutcome; {@code GET /version} answers health checks.
+ */
+final class StubValidatorServer implements AutoCloseable {
+    static {
+        // 未關閉 Nagle 時, 分開寫出的 header 與 body 會遇上 delayed ACK, 每個請求多等約 40 ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] response;
+    private final long latencyMillis;
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param response      the OperationOutcome JSON returned for every validation
+     * @param latencyMillis how long the stub takes to "validate" a resource
+     */
+    StubValidatorServer(byte[] response, long latencyMillis) throws IOException {
+        this.response = response;
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-validator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/validate", this::handleValidate);
+        server.createContext("/version", this::handleVersion);
+        server.start();
+    }
+
+    /**
+     * The URL to configure as {@code INFERNO_URL}.
+     */
+    String getValidateUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/validate";
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    private void handleValidate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            requests.incrementAndGet();
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        }
+    }
+
+    private void handleVersion(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] version = "stub".getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(200, version.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(version);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        server.stop(0);
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
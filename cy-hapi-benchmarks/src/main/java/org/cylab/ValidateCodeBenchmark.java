@@ -0,0 +1,154 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code $validate-code} pre-processing through {@link OperationRouter} and {@link ValidateCodeOpCustomizer}:
+ * buffering and scanning the {@code Parameters} body, then either answering it (common code system, inline
+ * ValueSet index, batch) or rewriting the body with the ValueSet url appended for the server.
+ * <p>
+ * No outgoing-response hook runs, so the terminology result cache stays empty and every invocation takes the
+ * same path. The server's terminology is an in-memory code system, and batches are enabled explicitly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidateCodeBenchmark {
+    private static final int INLINE_CONCEPTS = 200;
+    private static final String BENCHMARK_CODE_SYSTEM = "http://example.org/fhir/CodeSystem/benchmark";
+    private static final int BATCH_CODINGS = 20;
+    private static final String[] UCUM_CODES = {"mg/dL", "mmol/L", "kg", "cm", "mm[Hg]", "%", "/min", "Cel", "g/L", "mL"};
+
+    /**
+     * Which path of the pre-processing answers the request.
+     */
+    public enum Scenario {
+        /** {@code CodeSystem/$validate-code} for a UCUM code, answered by the common code validator. */
+        COMMON_CODE,
+        /** {@code ValueSet/$validate-code} against an enumerated inline ValueSet, answered by the compose index. */
+        INLINE_INDEX,
+        /** {@code ValueSet/$validate-code} against a filtered inline ValueSet, rewritten and passed to the server. */
+        APPEND_URL,
+        /** {@code CodeSystem/$validate-code} with several UCUM codings, answered by the batch validator. */
+        BATCH
+    }
+
+    @Param
+    Scenario scenario;
+
+    private RestfulServer server;
+    private OperationRouter router;
+    private String resourceName;
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        server = new RestfulServer(FhirContext.forR4Cached());
+        FhirContext ctx = FhirContext.forR4Cached();
+        CommonCodeValidator commonCodeValidator = new CommonCodeValidator(ctx);
+        TerminologyResultCache terminologyResultCache = new TerminologyResultCache();
+        InlineValueSetIndex inlineValueSetIndex = new InlineValueSetIndex();
+        BatchCodeValidator batchCodeValidator = new BatchCodeValidator(commonCodeValidator, terminologyResultCache,
+                inlineValueSetIndex, ForkJoinPool.commonPool(), 10_000);
+        router = new OperationRouter(new ValidateCodeOpCustomizer(commonCodeValidator, terminologyResultCache,
+                inlineValueSetIndex, batchCodeValidator, new ServerTerminology(createTerminology(ctx))));
+        resourceName = scenario == Scenario.COMMON_CODE || scenario == Scenario.BATCH ? "CodeSystem" : "ValueSet";
+        body = createBody(scenario).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void preProcess(Blackhole blackhole) throws IOException {
+        HttpServletRequest request = BenchmarkServlets.request(Constants.CT_FHIR_JSON_NEW, body);
+        ServletRequestDetails requestDetails = BenchmarkServlets.requestDetails(server, resourceName, "$validate-code", RequestTypeEnum.POST, request);
+        BenchmarkServlets.BenchmarkResponse response = BenchmarkServlets.response();
+        blackhole.consume(router.onIncomingRequest(requestDetails, request, response));
+        blackhole.consume(response.getBodyLength());
+        blackhole.consume(requestDetails.getServletRequest().getContentLength());
+    }
+
+    /**
+     * In-memory stand-in for the server's terminology, holding the benchmark code system the inline ValueSet draws from.
+     */
+    static IValidationSupport createTerminology(FhirContext ctx) {
+        CodeSystem codeSystem = new CodeSystem();
+        codeSystem.setUrl(BENCHMARK_CODE_SYSTEM);
+        codeSystem.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        codeSystem.setContent(CodeSystem.CodeSystemContentMode.COMPLETE);
+        for (int i = 0; i < INLINE_CONCEPTS; i++) {
+            codeSystem.addConcept().setCode("C" + i).setDisplay("Concept " + i);
+        }
+        PrePopulatedValidationSupport prePopulated = new PrePopulatedValidationSupport(ctx);
+        prePopulated.addCodeSystem(codeSystem);
+        // chain 由第一個支援該 code system 的模組回答 lookupCode, InMemory 需排在前面
+        return new ValidationSupportChain(new InMemoryTerminologyServerValidationSupport(ctx), prePopulated);
+    }
+
+    static String createBody(Scenario scenario) {
+        return switch (scenario) {
+            case COMMON_CODE -> """
+                    {"resourceType":"Parameters","parameter":[\
+                    {"name":"url","valueUri":"http://unitsofmeasure.org"},\
+                    {"name":"code","valueCode":"mg/dL"}]}""";
+            case INLINE_INDEX -> {
+                StringBuilder concepts = new StringBuilder();
+                for (int i = 0; i < INLINE_CONCEPTS; i++) {
+                    if (i > 0) {
+                        concepts.append(',');
+                    }
+                    concepts.append("{\"code\":\"C").append(i).append("\",\"display\":\"Concept ").append(i).append("\"}");
+                }
+                yield """
+                        {"resourceType":"Parameters","parameter":[\
+                        {"name":"coding","valueCoding":{"system":"http://example.org/fhir/CodeSystem/benchmark","code":"C%d"}},\
+                        {"name":"valueSet","resource":{"resourceType":"ValueSet","url":"http://example.org/fhir/ValueSet/enumerated",\
+                        "status":"active","compose":{"include":[{"system":"http://example.org/fhir/CodeSystem/benchmark","concept":[%s]}]}}}]}"""
+                        .formatted(INLINE_CONCEPTS - 1, concepts);
+            }
+            case APPEND_URL -> """
+                    {"resourceType":"Parameters","parameter":[\
+                    {"name":"coding","valueCoding":{"system":"http://example.org/fhir/CodeSystem/benchmark","code":"C1"}},\
+                    {"name":"valueSet","resource":{"resourceType":"ValueSet","url":"http://example.org/fhir/ValueSet/filtered",\
+                    "status":"active","compose":{"include":[{"system":"http://example.org/fhir/CodeSystem/benchmark",\
+                    "filter":[{"property":"concept","op":"is-a","value":"C0"}]}]}}}]}""";
+            case BATCH -> {
+                StringBuilder parameters = new StringBuilder("{\"name\":\"url\",\"valueUri\":\"http://unitsofmeasure.org\"}");
+                for (int i = 0; i < BATCH_CODINGS; i++) {
+                    parameters.append(",{\"name\":\"coding\",\"valueCoding\":{\"system\":\"http://unitsofmeasure.org\",\"code\":\"")
+                            .append(UCUM_CODES[i % UCUM_CODES.length]).append("\"}}");
+                }
+                yield "{\"resourceType\":\"Parameters\",\"parameter\":[" + parameters + "]}";
+            }
+        };
+    }
+}
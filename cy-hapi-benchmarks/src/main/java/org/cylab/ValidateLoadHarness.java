@@ -0,0 +1,224 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline load test of {@code $validate} and {@code $validate-code} through the interceptors, with
+ * {@link StubValidatorServer} standing in for Inferno.
+ * <p>
+ * Worker threads call {@link OperationRouter} the way the servlet container would, so every {@code $validate}
+ * goes through buffering, the validator client, the endpoint pool and the real HTTP round trip to the stub, and
+ * every {@code $validate-code} is answered by the common code validator. The result cache is disabled and each
+ * Patient has its own id, so no request is answered from the cache or shares another's validator call. After the
+ * warm-up, throughput and latency percentiles are printed per operation.
+ * <p>
+ * Configured with {@code LOAD_*} environment variables; the {@code INFERNO_*} client settings apply as in the
+ * server. Run with {@code java -cp target/benchmarks.jar org.cylab.ValidateLoadHarness}.
+ */
+public class ValidateLoadHarness {
+    private static final String VALIDATE_CODE_BODY = """
+            {"resourceType":"Parameters","parameter":[\
+            {"name":"url","valueUri":"http://unitsofmeasure.org"},\
+            {"name":"code","valueCode":"mg/dL"}]}""";
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final int threads;
+    private final Duration warmUp;
+    private final Duration duration;
+    private final long stubLatencyMillis;
+    private final int issues;
+    private final int validateCodePercent;
+
+    public ValidateLoadHarness() {
+        this(
+                EnvironmentSettings.getInt("LOAD_THREADS", 16),
+                Duration.ofSeconds(EnvironmentSettings.getLong("LOAD_WARMUP_SECONDS", 10)),
+                Duration.ofSeconds(EnvironmentSettings.getLong("LOAD_DURATION_SECONDS", 30)),
+                EnvironmentSettings.getLong("LOAD_STUB_LATENCY_MS", 20),
+                EnvironmentSettings.getInt("LOAD_ISSUES", 20),
+                EnvironmentSettings.getInt("LOAD_VALIDATE_CODE_PERCENT", 20)
+        );
+    }
+
+    /**
+     * @param stubLatencyMillis   how long the stub validator takes per resource
+     * @param issues              issues in the stub's OperationOutcome
+     * @param validateCodePercent share of {@code $validate-code} requests, the rest are {@code $validate}
+     */
+    public ValidateLoadHarness(int threads, Duration warmUp, Duration duration, long stubLatencyMillis, int issues, int validateCodePercent) {
+        this.threads = Math.max(1, threads);
+        this.warmUp = warmUp;
+        this.duration = duration;
+        this.stubLatencyMillis = stubLatencyMillis;
+        this.issues = Math.max(0, issues);
+        this.validateCodePercent = Math.max(0, Math.min(100, validateCodePercent));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ValidateLoadHarness().run();
+    }
+
+    public void run() throws Exception {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        byte[] stubResponse = fhirContext.newJsonParser()
+                .encodeResourceToString(ValidateResponseBenchmark.createOutcome(issues))
+                .getBytes(StandardCharsets.UTF_8);
+
+        try (StubValidatorServer stub = new StubValidatorServer(stubResponse, stubLatencyMillis)) {
+            ValidatorEndpointPool backend = new ValidatorEndpointPool(new ValidatorCaller(), List.of(stub.getValidateUrl()),
+                    Integer.MAX_VALUE, Duration.ofSeconds(1), 1);
+            OperationRouter router = new OperationRouter(
+                    new ValidateOpCustomizer(backend, new ValidationResultCache(0, Duration.ZERO), null, null, null, null),
+                    new ValidateCodeOpCustomizer());
+            RestfulServer server = new RestfulServer(fhirContext);
+
+            System.out.printf("Load test: %d threads, %d s warm-up, %d s measured, stub latency %d ms, %d issues, %d%% $validate-code%n",
+                    threads, warmUp.toSeconds(), duration.toSeconds(), stubLatencyMillis, issues, validateCodePercent);
+
+            long measureStart = System.nanoTime() + warmUp.toNanos();
+            long end = measureStart + duration.toNanos();
+            List<Worker> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(i, router, server, measureStart, end);
+                workers.add(worker);
+                worker.start();
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+
+            double seconds = duration.toNanos() / 1e9;
+            report("$validate", workers.stream().map(worker -> worker.validateLatencies).toList(),
+                    workers.stream().mapToLong(worker -> worker.validateErrors).sum(), seconds);
+            report("$validate-code", workers.stream().map(worker -> worker.validateCodeLatencies).toList(),
+                    workers.stream().mapToLong(worker -> worker.validateCodeErrors).sum(), seconds);
+            System.out.printf("Stub validator handled %d requests%n", stub.getRequestCount());
+        }
+    }
+
+    private static void report(String operation, List<Latencies> perThread, long errors, double seconds) {
+        int count = perThread.stream().mapToInt(latencies -> latencies.size).sum();
+        if (count == 0) {
+            System.out.printf("%-15s no requests%n", operation);
+            return;
+        }
+        long[] all = new long[count];
+        int offset = 0;
+        for (Latencies latencies : perThread) {
+            System.arraycopy(latencies.values, 0, all, offset, latencies.size);
+            offset += latencies.size;
+        }
+        Arrays.sort(all);
+        System.out.printf("%-15s %8d requests %10.1f req/s  errors %d  latency ms p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                operation, count, count / seconds, errors,
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), percentile(all, 0.999),
+                all[all.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private final class Worker extends Thread {
+        private final int id;
+        private final OperationRouter router;
+        private final RestfulServer server;
+        private final long measureStart;
+        private final long end;
+        private final byte[] validateCodeBody = VALIDATE_CODE_BODY.getBytes(StandardCharsets.UTF_8);
+        final Latencies validateLatencies = new Latencies();
+        final Latencies validateCodeLatencies = new Latencies();
+        long validateErrors;
+        long validateCodeErrors;
+
+        Worker(int id, OperationRouter router, RestfulServer server, long measureStart, long end) {
+            super("load-" + id);
+            this.id = id;
+            this.router = router;
+            this.server = server;
+            this.measureStart = measureStart;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            long sequence = 0;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                // 依序號平均分配兩種 operation, 各 thread 的比例相同
+                boolean validateCode = (sequence + 1) * validateCodePercent / 100 > sequence * validateCodePercent / 100;
+                sequence++;
+                int status;
+                try {
+                    status = validateCode ? sendValidateCode() : sendValidate(sequence);
+                } catch (Exception e) {
+                    status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                }
+                long finished = System.nanoTime();
+                if (now < measureStart) {
+                    continue;
+                }
+                // $validate 對不合格的資源回應 422, 同樣完成了驗證
+                boolean failed = status >= 500 || status == SC_TOO_MANY_REQUESTS;
+                if (validateCode) {
+                    validateCodeLatencies.add(finished - now);
+                    validateCodeErrors += failed ? 1 : 0;
+                } else {
+                    validateLatencies.add(finished - now);
+                    validateErrors += failed ? 1 : 0;
+                }
+            }
+        }
+
+        private int sendValidate(long sequence) throws Exception {
+            String patient = "{\"resourceType\":\"Patient\",\"id\":\"load-" + id + "-" + sequence + "\","
+                    + "\"name\":[{\"family\":\"Chen\",\"given\":[\"Mei\"]}],\"gender\":\"female\",\"birthDate\":\"1980-02-29\"}";
+            return send("Patient", "$validate", patient.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private int sendValidateCode() throws Exception {
+            return send("CodeSystem", "$validate-code", validateCodeBody);
+        }
+
+        private int send(String resourceName, String operation, byte[] body) throws Exception {
+            HttpServletRequest request = BenchmarkServlets.request(Constants.CT_FHIR_JSON_NEW, body, true, Map.of());
+            ServletRequestDetails requestDetails = BenchmarkServlets.requestDetails(server, resourceName, operation, RequestTypeEnum.POST, request);
+            BenchmarkServlets.BenchmarkResponse response = BenchmarkServlets.response();
+            if (router.onIncomingRequest(requestDetails, request, response)) {
+                // 未被攔截器回應的請求會交給 JPA server, 在此視為錯誤
+                return HttpServletResponse.SC_NOT_IMPLEMENTED;
+            }
+            return response.getStatus();
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds recorded by one thread.
+     */
+    private static final class Latencies {
+        long[] values = new long[1 << 16];
+        int size;
+
+        void add(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+    }
+}
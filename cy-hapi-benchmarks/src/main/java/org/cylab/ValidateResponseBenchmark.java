@@ -0,0 +1,135 @@
+package org.cylab;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a validator response into the {@code $validate} response: parsing the validator's OperationOutcome,
+ * adding the wrapper's issue and encoding it in the request's format, optionally compressed.
+ * <p>
+ * {@link #validate} runs the whole {@code $validate} route against an in-memory validator answering instantly, with
+ * the result cache disabled; {@link #encodeOutcome} measures only the encoding of an already parsed OperationOutcome.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidateResponseBenchmark {
+    private static final String PATIENT_JSON = """
+            {"resourceType":"Patient","id":"benchmark","name":[{"family":"Chen","given":["Mei"]}],\
+            "gender":"female","birthDate":"1980-02-29"}""";
+    private static final String PATIENT_XML = """
+            <Patient xmlns="http://hl7.org/fhir"><id value="benchmark"/><name><family value="Chen"/>\
+            <given value="Mei"/></name><gender value="female"/><birthDate value="1980-02-29"/></Patient>""";
+
+    /**
+     * Issues in the validator's OperationOutcome.
+     */
+    @Param({"1", "50", "500"})
+    int issues;
+
+    @Param({"json", "xml"})
+    String format;
+
+    @Param({"identity", "gzip"})
+    String acceptEncoding;
+
+    private RestfulServer server;
+    private OperationRouter router;
+    private String contentType;
+    private byte[] body;
+    private Map<String, String> headers;
+    private EncodingEnum encoding;
+    private OperationOutcome outcome;
+
+    @Setup
+    public void setUp() {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        server = new RestfulServer(fhirContext);
+        outcome = createOutcome(issues);
+        byte[] validatorResponse = fhirContext.newJsonParser().encodeResourceToString(outcome).getBytes(StandardCharsets.UTF_8);
+
+        ValidationBackend backend = new ValidationBackend() {
+            @Override
+            public ValidationResponseResult validate(byte[] resource) {
+                return new ValidationResponseResult(validatorResponse, HttpServletResponse.SC_OK);
+            }
+
+            @Override
+            public CompletableFuture<ValidationResponseResult> validateAsync(byte[] resource) {
+                return CompletableFuture.completedFuture(validate(resource));
+            }
+
+            @Override
+            public Duration getMaxCallDuration() {
+                return Duration.ofSeconds(1);
+            }
+        };
+        router = new OperationRouter(new ValidateOpCustomizer(backend, new ValidationResultCache(0, Duration.ZERO), null, null, null, null));
+
+        boolean json = "json".equals(format);
+        encoding = json ? EncodingEnum.JSON : EncodingEnum.XML;
+        contentType = json ? Constants.CT_FHIR_JSON_NEW : Constants.CT_FHIR_XML_NEW;
+        body = (json ? PATIENT_JSON : PATIENT_XML).getBytes(StandardCharsets.UTF_8);
+        headers = "identity".equals(acceptEncoding) ? Map.of() : Map.of(Constants.HEADER_ACCEPT_ENCODING, acceptEncoding);
+    }
+
+    @Benchmark
+    public void validate(Blackhole blackhole) throws IOException {
+        HttpServletRequest request = BenchmarkServlets.request(contentType, body, true, headers);
+        ServletRequestDetails requestDetails = BenchmarkServlets.requestDetails(server, "Patient", "$validate", RequestTypeEnum.POST, request);
+        BenchmarkServlets.BenchmarkResponse response = BenchmarkServlets.response();
+        blackhole.consume(router.onIncomingRequest(requestDetails, request, response));
+        blackhole.consume(response.getBodyLength());
+    }
+
+    @Benchmark
+    public void encodeOutcome(Blackhole blackhole) throws IOException {
+        HttpServletRequest request = BenchmarkServlets.request(contentType, body, true, headers);
+        ServletRequestDetails requestDetails = BenchmarkServlets.requestDetails(server, "Patient", "$validate", RequestTypeEnum.POST, request);
+        BenchmarkServlets.BenchmarkResponse response = BenchmarkServlets.response();
+        ServletResponses.writeResource(requestDetails, response, outcome, HttpServletResponse.SC_OK, encoding);
+        blackhole.consume(response.getBodyLength());
+    }
+
+    static OperationOutcome createOutcome(int issues) {
+        OperationOutcome outcome = new OperationOutcome();
+        for (int i = 0; i < issues; i++) {
+            outcome.addIssue()
+                    .setSeverity(i % 3 == 0 ? OperationOutcome.IssueSeverity.ERROR : OperationOutcome.IssueSeverity.WARNING)
+                    .setCode(OperationOutcome.IssueType.PROCESSING)
+                    .setDiagnostics("Constraint failed: benchmark-" + i + " (Patient.name.given[" + i + "])")
+                    .addLocation("Patient.name[0].given[" + i + "]")
+                    .addExpression("Patient.name[0].given[" + i + "]");
+        }
+        return outcome;
+    }
+}